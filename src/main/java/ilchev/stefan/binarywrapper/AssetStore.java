@@ -0,0 +1,156 @@
+package ilchev.stefan.binarywrapper;
+
+import android.content.Context;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class AssetStore {
+
+	private static final String TAG = "AssetStore";
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static volatile AssetStore instance = null;
+
+	public static AssetStore getInstance(Context context) {
+		var result = instance;
+		if (result == null) {
+			synchronized (AssetStore.class) {
+				result = instance;
+				if (result == null) {
+					var dir = new File(context.getFilesDir(), BuildConfig.LIBRARY_PACKAGE_NAME);
+					var assetStore = new AssetStore(dir.toPath());
+					Metrics.gauge("binarywrapper_asset_store_hits", "Asset store hits.", assetStore::getHitCount);
+					Metrics.gauge("binarywrapper_asset_store_misses", "Asset store misses.", assetStore::getMissCount);
+					Metrics.gauge("binarywrapper_asset_store_saved_bytes", "Bytes saved by hard links.", assetStore::getSavedBytes);
+					Metrics.gauge("binarywrapper_asset_store_collected_bytes", "Bytes collected from unused blobs.", assetStore::getCollectedBytes);
+					result = assetStore;
+					instance = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	private final Path dir;
+
+	private final AtomicLong hitCount = new AtomicLong();
+
+	private final AtomicLong missCount = new AtomicLong();
+
+	private final AtomicLong savedBytes = new AtomicLong();
+
+	private final AtomicLong collectedBytes = new AtomicLong();
+
+	private final Set<Path> tmps = new HashSet<>();
+
+	private AssetStore(Path dir) {
+		this.dir = dir;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getSavedBytes() {
+		return savedBytes.get();
+	}
+
+	public long getCollectedBytes() {
+		return collectedBytes.get();
+	}
+
+	private static String toHex(byte[] bytes) {
+		var result = new StringBuilder(bytes.length * 2);
+		for (var b : bytes) {
+			result.append(Character.forDigit((b >> 4) & 0xF, 16))
+					.append(Character.forDigit(b & 0xF, 16));
+		}
+		return result.toString();
+	}
+
+	public void copy(InputStream in, Path path) throws Exception {
+		Path tmp;
+		synchronized (this) {
+			Files.createDirectories(dir);
+			tmp = Files.createTempFile(dir, null, TMP_SUFFIX);
+			tmps.add(tmp);
+		}
+		try {
+			var digest = MessageDigest.getInstance("SHA-256");
+			try (var out = new DigestOutputStream(Files.newOutputStream(tmp), digest)) {
+				var buffer = new byte[8192];
+				for (int count; (count = in.read(buffer)) >= 0; ) {
+					out.write(buffer, 0, count);
+				}
+			}
+			var size = Files.size(tmp);
+			var blob = dir.resolve(toHex(digest.digest()));
+			synchronized (this) {
+				var isHit = Files.exists(blob);
+				if (isHit) {
+					hitCount.incrementAndGet();
+				} else {
+					missCount.incrementAndGet();
+					Files.move(tmp, blob, StandardCopyOption.ATOMIC_MOVE);
+					blob.toFile().setReadOnly();
+				}
+				try {
+					Files.createLink(path, blob);
+					if (isHit) {
+						savedBytes.addAndGet(size);
+					}
+				} catch (IOException | UnsupportedOperationException e) {
+					Log.w(TAG, e);
+					Files.copy(blob, path);
+				}
+			}
+		} finally {
+			synchronized (this) {
+				tmps.remove(tmp);
+			}
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	public synchronized void gc() {
+		if (!Files.isDirectory(dir)) {
+			return;
+		}
+		try (var stream = Files.newDirectoryStream(dir)) {
+			for (var blob : stream) {
+				var stat = Os.stat(blob.toString());
+				if (blob.getFileName().toString().endsWith(TMP_SUFFIX) ? !tmps.contains(blob) : stat.st_nlink <= 1L) {
+					Files.deleteIfExists(blob);
+					collectedBytes.addAndGet(stat.st_size);
+				}
+			}
+		} catch (Throwable t) {
+			Log.w(TAG, t);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "hitCount = " + getHitCount() +
+				", missCount = " + getMissCount() +
+				", savedBytes = " + getSavedBytes() +
+				", collectedBytes = " + getCollectedBytes();
+	}
+}
@@ -1,22 +1,41 @@
 package ilchev.stefan.binarywrapper;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.res.AssetManager;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.system.OsConstants;
 import android.util.Log;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Objects;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 
 import javax.security.auth.Destroyable;
 
@@ -24,37 +43,311 @@ public abstract class BaseDaemonRunnable implements Runnable, Destroyable {
 
 	private static final String TAG = "BaseDaemonRunnable";
 
+	private static final Executor EXTRACT_EXECUTOR = Executors.newSingleThreadExecutor();
+
+	private static final Executor DELETE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+	private static final String VERSIONS_SUFFIX = ".versions";
+
+	private static final String VERSION_PREFIX = "v";
+
+	private static final String LINK_SUFFIX = ".tmp";
+
+	private static final String LAZY_MARKER_SUFFIX = ".lazy";
+
+	private static final Set<Path> EXTRACTING_VERSIONS = new HashSet<>();
+
+	private static final Map<String, AtomicReference<CommandChannel>> COMMAND_CHANNELS = new ConcurrentHashMap<>();
+
+	public static final class Scheduling {
+
+		public final int nice;
+
+		public final Set<Integer> cpuAffinity;
+
+		public final int oomScoreAdj;
+
+		private Scheduling(int nice, Set<Integer> cpuAffinity, int oomScoreAdj) {
+			this.nice = nice;
+			this.cpuAffinity = cpuAffinity;
+			this.oomScoreAdj = oomScoreAdj;
+		}
+
+		@Override
+		public String toString() {
+			return "nice = " + nice + ", cpuAffinity = " + cpuAffinity + ", oomScoreAdj = " + oomScoreAdj;
+		}
+	}
+
+	private static Set<Integer> parseCpuList(String value) {
+		var result = new TreeSet<Integer>();
+		for (var range : value.trim().split(",")) {
+			if (range.isEmpty()) {
+				continue;
+			}
+			var bounds = range.split("-", 2);
+			var first = Integer.parseInt(bounds[0]);
+			var last = bounds.length > 1 ? Integer.parseInt(bounds[1]) : first;
+			for (var cpu = first; cpu <= last; ++cpu) {
+				result.add(cpu);
+			}
+		}
+		return Collections.unmodifiableSet(result);
+	}
+
+	static Scheduling readScheduling(int pid) throws Exception {
+		var proc = Paths.get("/proc", Integer.toString(pid));
+		var stat = new String(Files.readAllBytes(proc.resolve("stat")));
+		var nice = Integer.parseInt(stat.substring(stat.lastIndexOf(')') + 2).split(" ")[16]);
+		var cpuAffinity = Collections.<Integer>emptySet();
+		for (var line : Files.readAllLines(proc.resolve("status"))) {
+			if (line.startsWith("Cpus_allowed_list:")) {
+				cpuAffinity = parseCpuList(line.substring(line.indexOf(':') + 1));
+				break;
+			}
+		}
+		var oomScoreAdj = Integer.parseInt(new String(Files.readAllBytes(proc.resolve("oom_score_adj"))).trim());
+		return new Scheduling(nice, cpuAffinity, oomScoreAdj);
+	}
+
+	static int getPid(Process process) {
+		try {
+			return ((Number) process.getClass().getMethod("pid").invoke(process)).intValue();
+		} catch (Throwable ignore) {
+		}
+		try {
+			var field = process.getClass().getDeclaredField("pid");
+			field.setAccessible(true);
+			return field.getInt(process);
+		} catch (Throwable t) {
+			Log.w(TAG, t);
+		}
+		return 0;
+	}
+
+	private static void gauge(
+			String name,
+			String help,
+			AtomicReference<CommandChannel> commandChannel,
+			ToDoubleFunction<CommandChannel> value,
+			String tag) {
+		Metrics.gauge(name, help, () -> {
+			var result = commandChannel.get();
+			return result != null ? value.applyAsDouble(result) : 0.0;
+		}, "tag", tag);
+	}
+
+	private static AtomicReference<CommandChannel> getCommandChannel(String tag) {
+		return COMMAND_CHANNELS.computeIfAbsent(tag, it -> {
+			var result = new AtomicReference<CommandChannel>();
+			gauge("binarywrapper_subprocess_cmd_queued", "Queued stdin commands.",
+					result, CommandChannel::getQueuedCount, it);
+			gauge("binarywrapper_subprocess_cmd_written", "Written stdin commands.",
+					result, CommandChannel::getWrittenCount, it);
+			gauge("binarywrapper_subprocess_cmd_batches", "Written stdin command batches.",
+					result, CommandChannel::getBatchCount, it);
+			gauge("binarywrapper_subprocess_cmd_rejected", "Stdin commands rejected by a full queue.",
+					result, CommandChannel::getRejectedCount, it);
+			gauge("binarywrapper_subprocess_cmd_pending", "Stdin commands awaiting a response.",
+					result, CommandChannel::getPendingCount, it);
+			gauge("binarywrapper_subprocess_cmd_dropped", "Stdin command responses dropped by a full response queue.",
+					result, CommandChannel::getDroppedCount, it);
+			return result;
+		});
+	}
+
+	static void setPriority(int pid, int priority) {
+		try (var stream = Files.newDirectoryStream(Paths.get("/proc", Integer.toString(pid), "task"))) {
+			for (var task : stream) {
+				try {
+					android.os.Process.setThreadPriority(Integer.parseInt(task.getFileName().toString()), priority);
+				} catch (IllegalArgumentException ignore) {
+				}
+			}
+		} catch (IOException e) {
+			android.os.Process.setThreadPriority(pid, priority);
+		}
+	}
+
+	static void deleteTree(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.deleteIfExists(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				Files.deleteIfExists(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static Path getVersions(Path link) {
+		return link.resolveSibling(link.getFileName() + VERSIONS_SUFFIX);
+	}
+
+	private static Path createVersion(Path link) throws IOException {
+		var versions = getVersions(link);
+		synchronized (EXTRACTING_VERSIONS) {
+			Files.createDirectories(versions);
+			var result = Files.createTempDirectory(versions, VERSION_PREFIX);
+			EXTRACTING_VERSIONS.add(result);
+			return result;
+		}
+	}
+
+	private static void removeVersion(Path version) {
+		synchronized (EXTRACTING_VERSIONS) {
+			EXTRACTING_VERSIONS.remove(version);
+		}
+	}
+
+	private static boolean isVersionDeletable(Path link, Path version) throws IOException {
+		if (!Files.isDirectory(version, LinkOption.NOFOLLOW_LINKS)) {
+			return false;
+		}
+		synchronized (EXTRACTING_VERSIONS) {
+			if (EXTRACTING_VERSIONS.contains(version)) {
+				return false;
+			}
+			var target = Files.isSymbolicLink(link) ? link.resolveSibling(Files.readSymbolicLink(link)).getParent() : null;
+			return !version.equals(target);
+		}
+	}
+
+	private static void deleteVersionsIfEmpty(Path link, Path versions) {
+		synchronized (EXTRACTING_VERSIONS) {
+			if (Files.isSymbolicLink(link)) {
+				return;
+			}
+			try {
+				Files.deleteIfExists(versions);
+			} catch (IOException ignore) {
+			}
+		}
+	}
+
+	private static void deleteVersions(Path link, AssetStore assetStore) {
+		DELETE_EXECUTOR.execute(() -> {
+			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_LOWEST);
+			var versions = getVersions(link);
+			if (Files.isDirectory(versions, LinkOption.NOFOLLOW_LINKS)) {
+				try (var stream = Files.newDirectoryStream(versions)) {
+					for (var version : stream) {
+						if (isVersionDeletable(link, version)) {
+							deleteTree(version);
+						}
+					}
+				} catch (Throwable t) {
+					Log.w(TAG, t);
+				}
+				deleteVersionsIfEmpty(link, versions);
+			}
+			if (assetStore != null) {
+				assetStore.gc();
+				Log.v(TAG, "ASSET_STORE = " + assetStore);
+			}
+		});
+	}
+
 	private final AssetManager assetManager;
 
 	private final File assetsMarker;
 
+	private final File lazyAssetsMarker;
+
 	private final File bin;
 
-	private volatile boolean isDestroyed = false;
+	private final Context context;
 
-	private Process process = null;
+	private ThrottlePolicy.Action throttle = ThrottlePolicy.Action.NONE;
 
-	private final Runnable destroyProcessRunnable = () -> {
-		var process = this.process;
-		if (process != null) {
-			this.process = null;
-			process.destroy();
+	private Runnable startListener = null;
+
+	private Runnable statusListener = null;
+
+	private CommandChannel commandChannel = null;
+
+	private volatile long extractDuration = 0L;
+
+	private volatile long lazyExtractDuration = 0L;
+
+	private volatile long restartCount = 0L;
+
+	private final ProcessHandoff handoff = new ProcessHandoff() {
+
+		@Override
+		boolean isMainThread() {
+			return Looper.myLooper() == BaseForegroundService.MAIN_HANDLER.getLooper();
 		}
-	};
 
-	private final Runnable clearProcessRunnable = () ->
-			process = null;
+		@Override
+		boolean post(Runnable runnable) {
+			return BaseForegroundService.MAIN_HANDLER.post(runnable);
+		}
+
+		@Override
+		CommandChannel getCommandChannel() {
+			return BaseDaemonRunnable.this.getCommandChannel();
+		}
+
+		@Override
+		void onSet(Process process) {
+			if (throttle != ThrottlePolicy.Action.NONE) {
+				throttle(process, ThrottlePolicy.Action.NONE, throttle);
+			}
+			var startListener = BaseDaemonRunnable.this.startListener;
+			if (startListener != null) {
+				startListener.run();
+			}
+			onStatusChanged();
+		}
+
+		@Override
+		void onClear() {
+			onStatusChanged();
+		}
+
+		@Override
+		void onDestroy(Process process) {
+			if (throttle == ThrottlePolicy.Action.PAUSE) {
+				signal(process, OsConstants.SIGCONT);
+			}
+		}
+	};
 
 	public BaseDaemonRunnable(Context context) {
 		assetManager = context.getAssets();
 		assetsMarker = new File(context.getCodeCacheDir(), BuildConfig.LIBRARY_PACKAGE_NAME);
+		lazyAssetsMarker = new File(context.getCodeCacheDir(), BuildConfig.LIBRARY_PACKAGE_NAME + LAZY_MARKER_SUFFIX);
 		bin = new File(context.getApplicationInfo().nativeLibraryDir);
+		this.context = context.getApplicationContext();
 	}
 
 	protected Map<String, File> getSubprocessAssets() {
 		return Collections.emptyMap();
 	}
 
+	protected boolean isSubprocessAssetsDeduplicated() {
+		return false;
+	}
+
+	protected Set<String> getSubprocessLazyAssets() {
+		return Collections.emptySet();
+	}
+
+	protected File getSubprocessLazyAssetsMarker() {
+		return null;
+	}
+
+	protected String getSubprocessLazyAssetsCmd() {
+		return null;
+	}
+
 	protected abstract List<String> getSubprocessCmd();
 
 	protected Map<String, String> getSubprocessEnv() {
@@ -85,11 +378,61 @@ public abstract class BaseDaemonRunnable implements Runnable, Destroyable {
 		return "Subprocess";
 	}
 
+	protected int getSubprocessCmdQueueCapacity() {
+		return 256;
+	}
+
+	protected Integer getSubprocessNice() {
+		return null;
+	}
+
+	protected Set<Integer> getSubprocessCpuAffinity() {
+		return Collections.emptySet();
+	}
+
+	protected Integer getSubprocessOomScoreAdj() {
+		return null;
+	}
+
+	protected int getSubprocessTrimLevel() {
+		return ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+	}
+
+	protected int getSubprocessTrimSignal() {
+		return 0;
+	}
+
+	protected String getSubprocessTrimCmd() {
+		return null;
+	}
+
+	protected void onSubprocessTrimMemory(int level) {
+	}
+
+	protected int getSubprocessThrottleSignal() {
+		return 0;
+	}
+
+	protected String getSubprocessThrottleCmd() {
+		return null;
+	}
+
+	protected int getSubprocessThrottleNice() {
+		return android.os.Process.THREAD_PRIORITY_BACKGROUND;
+	}
+
+	protected void onSubprocessThrottle(ThrottlePolicy.Action action) {
+	}
+
 	@Override
 	public boolean equals(Object obj) {
 		var daemonRunnable = obj instanceof BaseDaemonRunnable ? (BaseDaemonRunnable) obj : null;
 		return daemonRunnable == this || daemonRunnable != null &&
 				daemonRunnable.getSubprocessAssets().equals(getSubprocessAssets()) &&
+				daemonRunnable.isSubprocessAssetsDeduplicated() == isSubprocessAssetsDeduplicated() &&
+				daemonRunnable.getSubprocessLazyAssets().equals(getSubprocessLazyAssets()) &&
+				Objects.equals(daemonRunnable.getSubprocessLazyAssetsMarker(), getSubprocessLazyAssetsMarker()) &&
+				Objects.equals(daemonRunnable.getSubprocessLazyAssetsCmd(), getSubprocessLazyAssetsCmd()) &&
 				daemonRunnable.getSubprocessCmd().equals(getSubprocessCmd()) &&
 				daemonRunnable.getSubprocessEnv().equals(getSubprocessEnv()) &&
 				daemonRunnable.getSubprocessExitValuesEnd().equals(getSubprocessExitValuesEnd()) &&
@@ -97,67 +440,365 @@ public abstract class BaseDaemonRunnable implements Runnable, Destroyable {
 				daemonRunnable.getSubprocessExitValuesStart().equals(getSubprocessExitValuesStart()) &&
 				daemonRunnable.getSubprocessRetriesCount() == getSubprocessRetriesCount() &&
 				daemonRunnable.getSubprocessRetryDelay() == getSubprocessRetryDelay() &&
-				daemonRunnable.getSubprocessTag().equals(getSubprocessTag());
+				daemonRunnable.getSubprocessTag().equals(getSubprocessTag()) &&
+				daemonRunnable.getSubprocessCmdQueueCapacity() == getSubprocessCmdQueueCapacity() &&
+				Objects.equals(daemonRunnable.getSubprocessNice(), getSubprocessNice()) &&
+				daemonRunnable.getSubprocessCpuAffinity().equals(getSubprocessCpuAffinity()) &&
+				Objects.equals(daemonRunnable.getSubprocessOomScoreAdj(), getSubprocessOomScoreAdj()) &&
+				daemonRunnable.getSubprocessTrimLevel() == getSubprocessTrimLevel() &&
+				daemonRunnable.getSubprocessTrimSignal() == getSubprocessTrimSignal() &&
+				Objects.equals(daemonRunnable.getSubprocessTrimCmd(), getSubprocessTrimCmd()) &&
+				daemonRunnable.getSubprocessThrottleSignal() == getSubprocessThrottleSignal() &&
+				Objects.equals(daemonRunnable.getSubprocessThrottleCmd(), getSubprocessThrottleCmd()) &&
+				daemonRunnable.getSubprocessThrottleNice() == getSubprocessThrottleNice();
 	}
 
 	@Override
 	public boolean isDestroyed() {
-		return isDestroyed;
+		return handoff.isDestroyed();
 	}
 
 	@Override
 	public void destroy() {
-		isDestroyed = true;
-		if (Looper.myLooper() == BaseForegroundService.MAIN_HANDLER.getLooper()) {
-			destroyProcessRunnable.run();
-		} else {
-			BaseForegroundService.MAIN_HANDLER.post(destroyProcessRunnable);
+		CommandChannel commandChannel;
+		synchronized (this) {
+			commandChannel = this.commandChannel;
+		}
+		if (commandChannel != null) {
+			commandChannel.close();
+			getCommandChannel(getSubprocessTag()).compareAndSet(commandChannel, null);
+		}
+		handoff.destroy();
+	}
+
+	public long getExtractDuration() {
+		return extractDuration;
+	}
+
+	public long getLazyExtractDuration() {
+		return lazyExtractDuration;
+	}
+
+	public long getRestartCount() {
+		return restartCount;
+	}
+
+	public boolean isRunning() {
+		return handoff.getProcess() != null;
+	}
+
+	public boolean isPaused() {
+		return handoff.getProcess() != null && throttle == ThrottlePolicy.Action.PAUSE;
+	}
+
+	void setStartListener(Runnable listener) {
+		startListener = listener;
+	}
+
+	void setStatusListener(Runnable listener) {
+		statusListener = listener;
+	}
+
+	private void onStatusChanged() {
+		var statusListener = this.statusListener;
+		if (statusListener != null) {
+			statusListener.run();
+		}
+	}
+
+	public synchronized CommandChannel getCommandChannel() {
+		var result = commandChannel;
+		if (result == null) {
+			result = new CommandChannel(getSubprocessTag(), getSubprocessCmdQueueCapacity());
+			commandChannel = result;
+			if (isDestroyed()) {
+				result.close();
+			} else {
+				getCommandChannel(getSubprocessTag()).set(result);
+			}
+		}
+		return result;
+	}
+
+	public CompletableFuture<String> send(String cmd, Predicate<String> matcher) {
+		return getCommandChannel().send(cmd, matcher);
+	}
+
+	public CompletableFuture<String> send(String cmd) {
+		return getCommandChannel().send(cmd);
+	}
+
+	public Scheduling getSubprocessScheduling() {
+		var process = handoff.getProcess();
+		var pid = process != null ? getPid(process) : 0;
+		if (pid > 0) {
+			try {
+				return readScheduling(pid);
+			} catch (Throwable t) {
+				Log.w(TAG, t);
+			}
 		}
+		return null;
 	}
 
-	private void extract(String src, File dst) throws Exception {
-		if (dst.exists()) {
-			if (assetsMarker.exists() || isDestroyed()) {
+	private void signal(Process process, int signal) {
+		var pid = getPid(process);
+		if (pid > 0) {
+			android.os.Process.sendSignal(pid, signal);
+		}
+	}
+
+	public void trimMemory(int level) {
+		if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			return;
+		}
+		onSubprocessTrimMemory(level);
+		var process = handoff.getProcess();
+		if (process == null || level < getSubprocessTrimLevel()) {
+			return;
+		}
+		var signal = getSubprocessTrimSignal();
+		if (signal > 0) {
+			signal(process, signal);
+		}
+		var cmd = getSubprocessTrimCmd();
+		if (cmd != null) {
+			send(cmd);
+		}
+	}
+
+	private void throttle(Process process, ThrottlePolicy.Action from, ThrottlePolicy.Action to) {
+		try {
+			var pid = getPid(process);
+			if (pid <= 0) {
 				return;
 			}
-			try (var stream = Files.walk(dst.toPath())) {
-				stream.sorted(Comparator.reverseOrder())
-						.map(Path::toFile)
-						.forEach(File::delete);
+			if (from == ThrottlePolicy.Action.PAUSE) {
+				android.os.Process.sendSignal(pid, OsConstants.SIGCONT);
+			}
+			if (to.compareTo(ThrottlePolicy.Action.RENICE) >= 0) {
+				setPriority(pid, getSubprocessThrottleNice());
+			} else if (from.compareTo(ThrottlePolicy.Action.RENICE) >= 0) {
+				var nice = getSubprocessNice();
+				setPriority(pid, nice != null ? nice : 0);
+			}
+			if (to == ThrottlePolicy.Action.SIGNAL) {
+				var signal = getSubprocessThrottleSignal();
+				if (signal > 0) {
+					android.os.Process.sendSignal(pid, signal);
+				}
+				var cmd = getSubprocessThrottleCmd();
+				if (cmd != null) {
+					send(cmd);
+				}
+			} else if (to == ThrottlePolicy.Action.PAUSE) {
+				android.os.Process.sendSignal(pid, OsConstants.SIGSTOP);
+			}
+		} catch (Throwable t) {
+			Log.w(TAG, t);
+		}
+	}
+
+	public void throttle(ThrottlePolicy.Action action) {
+		var throttle = this.throttle;
+		if (action == throttle) {
+			return;
+		}
+		this.throttle = action;
+		onSubprocessThrottle(action);
+		var process = handoff.getProcess();
+		if (process != null) {
+			throttle(process, throttle, action);
+		}
+		onStatusChanged();
+	}
+
+	private AssetStore getAssetStore() {
+		return isSubprocessAssetsDeduplicated() ? AssetStore.getInstance(context) : null;
+	}
+
+	private void extract(String src, File dst, File marker) throws Exception {
+		var link = dst.toPath().toAbsolutePath();
+		if (Files.exists(link)) {
+			if (marker.exists() || isDestroyed()) {
+				deleteVersions(link, getAssetStore());
+				return;
 			}
 		} else {
-			assetsMarker.delete();
-		}
-		var parent = dst.getParent();
-		var deque = new ArrayDeque<String>();
-		for (String node = src, name = dst.getName(); node != null && !isDestroyed(); node = name = deque.pollFirst()) {
-			var children = assetManager.list(node);
-			if (children != null) {
-				for (var child : children) {
-					deque.add(node + "/" + child);
+			marker.delete();
+		}
+		var parent = link.getParent();
+		var assetStore = getAssetStore();
+		var version = createVersion(link);
+		try {
+			var deque = new ArrayDeque<String>();
+			for (String node = src, name = dst.getName(); node != null && !isDestroyed(); node = name = deque.pollFirst()) {
+				var children = assetManager.list(node);
+				if (children != null) {
+					for (var child : children) {
+						deque.add(node + "/" + child);
+					}
+				}
+				var path = version.resolve(name);
+				try (var in = assetManager.open(node)) {
+					if (assetStore != null) {
+						assetStore.copy(in, path);
+					} else {
+						Files.copy(in, path);
+					}
+				} catch (FileNotFoundException ignore) {
+					Files.createDirectories(path);
+				}
+			}
+			if (isDestroyed()) {
+				return;
+			}
+			if (Files.exists(link, LinkOption.NOFOLLOW_LINKS) && !Files.isSymbolicLink(link)) {
+				var legacy = createVersion(link);
+				try {
+					Files.move(link, legacy.resolve(dst.getName()), StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					removeVersion(legacy);
 				}
 			}
-			var path = parent != null ? Paths.get(parent, name) : Paths.get(name);
-			try (var in = assetManager.open(node)) {
-				Files.copy(in, path);
-			} catch (FileNotFoundException ignore) {
-				Files.createDirectories(path);
+			var tmp = parent.resolve(dst.getName() + LINK_SUFFIX);
+			Files.deleteIfExists(tmp);
+			try {
+				Files.createSymbolicLink(tmp, parent.relativize(version.resolve(dst.getName())));
+				Files.move(tmp, link, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException | UnsupportedOperationException e) {
+				Log.w(TAG, e);
+				Files.deleteIfExists(tmp);
+				Files.move(version.resolve(dst.getName()), link, StandardCopyOption.ATOMIC_MOVE);
 			}
+		} finally {
+			removeVersion(version);
+			deleteVersions(link, assetStore);
 		}
 	}
 
-	private void extract() throws Exception {
+	private void extract(boolean isLazy) throws Exception {
+		var marker = isLazy ? lazyAssetsMarker : assetsMarker;
+		var lazyAssets = getSubprocessLazyAssets();
 		for (var entry : getSubprocessAssets().entrySet()) {
-			extract(entry.getKey(), entry.getValue());
+			if (lazyAssets.contains(entry.getKey()) != isLazy) {
+				continue;
+			}
+			extract(entry.getKey(), entry.getValue(), marker);
 			if (isDestroyed()) {
 				return;
 			}
 		}
+	}
+
+	private void observeExtractDuration(String phase, long duration) {
+		Metrics.histogram("binarywrapper_assets_extract_duration_seconds", "Asset extraction duration.",
+				Metrics.DURATION_BUCKETS, "tag", getSubprocessTag(), "phase", phase).observe(duration / 1_000.0);
+	}
+
+	private void extractLazy() {
+		var time = SystemClock.elapsedRealtime();
+		try {
+			extract(true);
+			if (isDestroyed()) {
+				return;
+			}
+			this.lazyAssetsMarker.mkdirs();
+			lazyExtractDuration = SystemClock.elapsedRealtime() - time;
+			Log.v(TAG, "LAZY_EXTRACT_DURATION = " + lazyExtractDuration);
+			observeExtractDuration("lazy", lazyExtractDuration);
+			var lazyAssetsMarker = getSubprocessLazyAssetsMarker();
+			if (lazyAssetsMarker != null) {
+				try {
+					var parent = lazyAssetsMarker.getParentFile();
+					if (parent != null) {
+						parent.mkdirs();
+					}
+					lazyAssetsMarker.createNewFile();
+				} catch (IOException e) {
+					Log.w(TAG, e);
+				}
+			}
+			var cmd = getSubprocessLazyAssetsCmd();
+			if (cmd != null) {
+				send(cmd);
+			}
+		} catch (Throwable t) {
+			Log.w(TAG, t);
+		}
+	}
+
+	private void extract() throws Exception {
+		var time = SystemClock.elapsedRealtime();
+		extract(false);
+		extractDuration = SystemClock.elapsedRealtime() - time;
+		Log.v(TAG, "EXTRACT_DURATION = " + extractDuration);
+		observeExtractDuration("critical", extractDuration);
+		if (isDestroyed()) {
+			return;
+		}
 		assetsMarker.mkdirs();
+		if (!getSubprocessLazyAssets().isEmpty()) {
+			var lazyAssetsMarker = getSubprocessLazyAssetsMarker();
+			if (lazyAssetsMarker != null && !this.lazyAssetsMarker.exists()) {
+				lazyAssetsMarker.delete();
+			}
+			EXTRACT_EXECUTOR.execute(this::extractLazy);
+		}
+	}
+
+	private static void checkExecutable(ProcessBuilder builder, String program) throws IOException {
+		var files = new ArrayList<File>();
+		if (program.indexOf('/') >= 0) {
+			var file = new File(program);
+			files.add(file.isAbsolute() ? file : new File(builder.directory(), program));
+		} else {
+			var path = builder.environment().get("PATH");
+			for (var dir : (path != null ? path : "").split(":", -1)) {
+				files.add(dir.isEmpty() ? new File(builder.directory(), program) : new File(dir, program));
+			}
+		}
+		for (var file : files) {
+			if (file.isFile() && file.canExecute()) {
+				return;
+			}
+		}
+		throw new IOException("Cannot run program \"" + program + "\": not an executable file");
 	}
 
-	private ProcessBuilder build() {
-		var builder = new ProcessBuilder(getSubprocessCmd())
+	private List<String> getScheduledCmd(List<String> cmd) {
+		var script = new StringBuilder();
+		var nice = getSubprocessNice();
+		if (nice != null) {
+			script.append("renice -n $((").append(nice)
+					.append(" - $(cut -d ')' -f 2 /proc/$$/stat | cut -d ' ' -f 18))) -p $$ >/dev/null 2>&1; ");
+		}
+		var cpuAffinity = getSubprocessCpuAffinity();
+		if (!cpuAffinity.isEmpty()) {
+			var mask = BigInteger.ZERO;
+			for (var cpu : cpuAffinity) {
+				mask = mask.setBit(cpu);
+			}
+			script.append("taskset -p ").append(mask.toString(16)).append(" $$ >/dev/null 2>&1; ");
+		}
+		var oomScoreAdj = getSubprocessOomScoreAdj();
+		if (oomScoreAdj != null) {
+			script.append("echo ").append(oomScoreAdj).append(" >/proc/$$/oom_score_adj 2>/dev/null; ");
+		}
+		if (script.length() == 0) {
+			return cmd;
+		}
+		var result = new ArrayList<String>();
+		result.add("sh");
+		result.add("-c");
+		result.add(script.append("exec \"$@\"").toString());
+		result.add("sh");
+		result.addAll(cmd);
+		return result;
+	}
+
+	private ProcessBuilder build(List<String> cmd) {
+		var builder = new ProcessBuilder(cmd)
 				.directory(bin)
 				.redirectErrorStream(true);
 		builder.environment()
@@ -165,46 +806,89 @@ public abstract class BaseDaemonRunnable implements Runnable, Destroyable {
 		return builder;
 	}
 
-	private Runnable toSetProcessRunnable(Process value) {
-		return () -> {
-			if (isDestroyed()) {
-				value.destroy();
-			} else {
-				process = value;
+	private void execute() throws Exception {
+		var tag = getSubprocessTag();
+		var starts = Metrics.counter("binarywrapper_subprocess_starts_total", "Subprocess starts.", "tag", tag);
+		var restarts = Metrics.counter("binarywrapper_subprocess_restarts_total", "Subprocess restarts.", "tag", tag);
+		var lines = Metrics.counter("binarywrapper_subprocess_output_lines_total", "Subprocess output lines.", "tag", tag);
+		var up = Metrics.gauge("binarywrapper_subprocess_up", "Whether the subprocess is running.", "tag", tag);
+		var commandChannel = getCommandChannel();
+		var cmd = getSubprocessCmd();
+		var scheduledCmd = getScheduledCmd(cmd);
+		var builder = build(scheduledCmd);
+		new Supervisor() {
+
+			private Process process = null;
+
+			@Override
+			boolean isDestroyed() {
+				return handoff.isDestroyed();
 			}
-		};
-	}
 
-	private void execute() throws Exception {
-		var builder = build();
-		for (var attempt = 0; !isDestroyed(); Thread.sleep(getSubprocessRetryDelay())) {
-			var process = builder.start();
-			if (!BaseForegroundService.MAIN_HANDLER.post(toSetProcessRunnable(process))) {
-				process.destroy();
-				break;
+			@Override
+			Set<Integer> getExitValuesEnd() {
+				return getSubprocessExitValuesEnd();
+			}
+
+			@Override
+			Set<Integer> getExitValuesSkip() {
+				return getSubprocessExitValuesSkip();
 			}
-			try (var scanner = new Scanner(process.getInputStream())) {
-				while (scanner.hasNextLine()) {
-					var line = scanner.nextLine();
-					Log.v(getSubprocessTag(), line);
+
+			@Override
+			Set<Integer> getExitValuesStart() {
+				return getSubprocessExitValuesStart();
+			}
+
+			@Override
+			int getRetriesCount() {
+				return getSubprocessRetriesCount();
+			}
+
+			@Override
+			long getRetryDelay() {
+				return getSubprocessRetryDelay();
+			}
+
+			@Override
+			Process start() throws Exception {
+				if (scheduledCmd != cmd) {
+					checkExecutable(builder, cmd.get(0));
 				}
+				return builder.start();
 			}
-			var exitValue = process.waitFor();
-			Log.v(TAG, "SUBPROCESS_EXIT_VALUE = " + exitValue);
-			if (isDestroyed() ||
-					!BaseForegroundService.MAIN_HANDLER.post(clearProcessRunnable) ||
-					getSubprocessExitValuesEnd().contains(exitValue)) {
-				break;
+
+			@Override
+			boolean onStart(Process process, boolean isRestart) {
+				if (isRestart) {
+					++restartCount;
+					restarts.inc();
+				}
+				starts.inc();
+				if (!handoff.start(process)) {
+					return false;
+				}
+				up.set(1.0);
+				this.process = process;
+				return true;
 			}
-			if (getSubprocessExitValuesSkip().contains(exitValue)) {
-				continue;
+
+			@Override
+			void onLine(String line) {
+				lines.inc();
+				Log.v(tag, line);
+				commandChannel.onLine(line);
 			}
-			if (getSubprocessExitValuesStart().contains(exitValue)) {
-				attempt = 0;
-			} else if (++attempt > getSubprocessRetriesCount()) {
-				break;
+
+			@Override
+			boolean onExit(int exitValue) {
+				up.set(0.0);
+				Log.v(TAG, "SUBPROCESS_EXIT_VALUE = " + exitValue);
+				Metrics.counter("binarywrapper_subprocess_exits_total", "Subprocess exits by exit value.",
+						"tag", tag, "exit_value", Integer.toString(exitValue)).inc();
+				return handoff.exit(process);
 			}
-		}
+		}.run();
 	}
 
 	@Override
@@ -12,25 +12,36 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageInstaller;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.media.MediaMetadata;
 import android.media.session.MediaSession;
 import android.media.session.PlaybackState;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 import java.io.File;
+import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -40,10 +51,43 @@ public abstract class BaseForegroundService extends Service {
 
 	private static final int NOTIFICATION_ID = 1;
 
+	private static final int MEMORY_PRESSURE_EVENTS_COUNT = 32;
+
+	private static final long LOW_MEMORY_WINDOW = 1_000L;
+
 	private static final Executor WORK_EXECUTOR = Executors.newSingleThreadExecutor();
 
+	private static final Executor IO_EXECUTOR = Executors.newSingleThreadExecutor();
+
+	private static final Executor CHECK_EXECUTOR = Executors.newSingleThreadExecutor();
+
+	private static volatile CharSequence applicationLabel = null;
+
+	private static volatile Bitmap applicationIcon = null;
+
+	private static volatile CharSequence notificationChannelName = null;
+
+	private static volatile String packageVersionName = null;
+
 	public static final Handler MAIN_HANDLER = new Handler(Looper.getMainLooper());
 
+	public static final class MemoryPressureEvent {
+
+		public final long time;
+
+		public final int level;
+
+		private MemoryPressureEvent(long time, int level) {
+			this.time = time;
+			this.level = level;
+		}
+
+		@Override
+		public String toString() {
+			return time + ": " + level;
+		}
+	}
+
 	public static String getUpdate(PackageInfo packageInfo, String versionName) {
 		return versionName == null || packageInfo.versionName.equals(versionName) ? null : versionName;
 	}
@@ -73,8 +117,72 @@ public abstract class BaseForegroundService extends Service {
 
 	private long updateDownloadId = 0L;
 
+	private volatile int updateDownloadProgress = -1;
+
 	private MediaSession mediaSession = null;
 
+	private Bitmap mediaSessionIcon = null;
+
+	private Notification.Builder notificationBuilder = null;
+
+	private Runnable statusRunnable = null;
+
+	private String status = null;
+
+	private long statusTime = 0L;
+
+	private Runnable updateCheckRunnable = null;
+
+	private MetricsServer metricsServer = null;
+
+	private boolean isCreated = false;
+
+	private Runnable mediaSessionRunnable = null;
+
+	private long createTime = 0L;
+
+	private long startDuration = 0L;
+
+	private final ArrayDeque<MemoryPressureEvent> memoryPressureEvents = new ArrayDeque<>();
+
+	private long lowMemoryTime = 0L;
+
+	private ThrottlePolicy throttlePolicy = null;
+
+	private BroadcastReceiver throttleReceiver = null;
+
+	private PowerManager.OnThermalStatusChangedListener throttleThermalListener = null;
+
+	private int thermalStatus = 0;
+
+	private int batteryLevel = 100;
+
+	private boolean isCharging = true;
+
+	private final ThrottlePolicy.Source throttleSource = new ThrottlePolicy.Source() {
+
+		@Override
+		public int getThermalStatus() {
+			return thermalStatus;
+		}
+
+		@Override
+		public int getBatteryLevel() {
+			return batteryLevel;
+		}
+
+		@Override
+		public boolean isCharging() {
+			return isCharging;
+		}
+
+		@Override
+		public boolean isPowerSaveMode() {
+			var manager = getSystemService(PowerManager.class);
+			return manager != null && manager.isPowerSaveMode();
+		}
+	};
+
 	protected abstract Class<?> getMainActivityClass();
 
 	protected abstract BaseDaemonRunnable getDaemonRunnable(Uri data);
@@ -91,23 +199,94 @@ public abstract class BaseForegroundService extends Service {
 		return null;
 	}
 
+	protected Uri getUpdateCheckUri() {
+		return null;
+	}
+
+	protected long getUpdateCheckInterval() {
+		return 21_600_000L;
+	}
+
+	protected String getUpdateCheckVersionName(String body) {
+		var result = body.trim();
+		return result.isEmpty() ? null : result;
+	}
+
+	protected ThrottlePolicy getThrottlePolicy() {
+		return null;
+	}
+
+	protected int getMetricsPort() {
+		return 0;
+	}
+
+	protected long getStatusInterval() {
+		return 1_000L;
+	}
+
+	public List<ThrottlePolicy.Transition> getThrottleTransitions() {
+		var throttlePolicy = this.throttlePolicy;
+		return throttlePolicy != null ? throttlePolicy.getTransitions() : new ArrayList<>();
+	}
+
+	public List<MemoryPressureEvent> getMemoryPressureEvents() {
+		synchronized (memoryPressureEvents) {
+			return new ArrayList<>(memoryPressureEvents);
+		}
+	}
+
+	public long getStartDuration() {
+		return startDuration;
+	}
+
+	private CharSequence getApplicationLabel() {
+		var result = applicationLabel;
+		if (result == null) {
+			result = getPackageManager().getApplicationLabel(getApplicationInfo());
+			applicationLabel = result;
+		}
+		return result;
+	}
+
+	private Bitmap getApplicationIcon() {
+		var result = applicationIcon;
+		if (result == null) {
+			result = BitmapFactory.decodeResource(getResources(), getApplicationInfo().icon);
+			applicationIcon = result;
+		}
+		return result;
+	}
+
 	private Uri getData(Intent intent) {
-		var sharedPreferences = getSharedPreferences(BuildConfig.LIBRARY_PACKAGE_NAME, MODE_PRIVATE);
 		if (intent == null) {
+			var sharedPreferences = getSharedPreferences(BuildConfig.LIBRARY_PACKAGE_NAME, MODE_PRIVATE);
 			var result = sharedPreferences.getString(BuildConfig.LIBRARY_PACKAGE_NAME, null);
 			return result != null ? Uri.parse(result) : null;
 		}
 		var result = intent.getData();
-		sharedPreferences.edit()
-				.putString(BuildConfig.LIBRARY_PACKAGE_NAME, result != null ? result.toString() : null)
-				.apply();
+		IO_EXECUTOR.execute(() ->
+				getSharedPreferences(BuildConfig.LIBRARY_PACKAGE_NAME, MODE_PRIVATE)
+						.edit()
+						.putString(BuildConfig.LIBRARY_PACKAGE_NAME, result != null ? result.toString() : null)
+						.apply());
 		return result;
 	}
 
 	private String getUpdateVersionName(Uri data) {
+		return getUpdateVersionName(getVersionName(data));
+	}
+
+	private String getUpdateVersionName(String versionName) {
+		if (versionName == null) {
+			return null;
+		}
 		try {
-			var packageInfo = getPackageManager().getPackageInfo(getPackageName(), 0);
-			return getUpdate(packageInfo, getVersionName(data));
+			var packageVersionName = BaseForegroundService.packageVersionName;
+			if (packageVersionName == null) {
+				packageVersionName = getPackageManager().getPackageInfo(getPackageName(), 0).versionName;
+				BaseForegroundService.packageVersionName = packageVersionName;
+			}
+			return packageVersionName.equals(versionName) ? null : versionName;
 		} catch (Throwable t) {
 			Log.w(TAG, t);
 		}
@@ -123,30 +302,34 @@ public abstract class BaseForegroundService extends Service {
 	}
 
 	private void startForeground(PendingIntent stopIntent) {
-		var applicationInfo = getApplicationInfo();
-		var applicationIcon = applicationInfo.icon;
-		var applicationLabel = getPackageManager().getApplicationLabel(applicationInfo);
+		var applicationIcon = getApplicationInfo().icon;
+		var applicationLabel = getApplicationLabel();
 		var stop = getString(R.string.stop);
 		var builder = new Notification.Builder(this, BuildConfig.LIBRARY_PACKAGE_NAME)
 				.setSmallIcon(applicationIcon)
 				.setContentTitle(applicationLabel)
 				.setContentText(stop)
-				.setContentIntent(stopIntent);
+				.setContentIntent(stopIntent)
+				.setOnlyAlertOnce(true)
+				.setShowWhen(false);
 		var manager = getSystemService(NotificationManager.class);
-		if (manager != null) {
+		if (manager != null && !applicationLabel.equals(notificationChannelName)) {
 			var channel = new NotificationChannel(
 					BuildConfig.LIBRARY_PACKAGE_NAME,
 					applicationLabel,
 					NotificationManager.IMPORTANCE_LOW);
 			manager.createNotificationChannel(channel);
+			notificationChannelName = applicationLabel;
 		}
 		if (Build.VERSION.SDK_INT > Build.VERSION_CODES.R) {
 			builder.setForegroundServiceBehavior(Notification.FOREGROUND_SERVICE_IMMEDIATE);
 		}
 		startForeground(NOTIFICATION_ID, builder.build());
+		notificationBuilder = builder;
 	}
 
 	private void stopForeground() {
+		stopStatus();
 		updateVersionNameMsg = updateVersionName;
 		stopForeground(STOP_FOREGROUND_REMOVE);
 		stopSelf();
@@ -156,12 +339,32 @@ public abstract class BaseForegroundService extends Service {
 		var daemonRunnable = this.daemonRunnable;
 		if (daemonRunnable != null) {
 			this.daemonRunnable = null;
+			daemonRunnable.setStatusListener(null);
 			daemonRunnable.destroy();
+			requestStatus();
 		}
 	}
 
 	private void startDaemon(BaseDaemonRunnable daemonRunnable) {
 		stopDaemon();
+		var createTime = this.createTime;
+		if (createTime != 0L) {
+			daemonRunnable.setStartListener(() -> {
+				daemonRunnable.setStartListener(null);
+				if (this.createTime == createTime) {
+					this.createTime = 0L;
+					startDuration = SystemClock.elapsedRealtime() - createTime;
+					Log.v(TAG, "START_DURATION = " + startDuration);
+					Metrics.gauge("binarywrapper_start_duration_seconds", "Time from service creation to daemon spawn.")
+							.set(startDuration / 1_000.0);
+				}
+			});
+		}
+		var throttlePolicy = this.throttlePolicy;
+		if (throttlePolicy != null) {
+			daemonRunnable.throttle(throttlePolicy.getAction());
+		}
+		daemonRunnable.setStatusListener(this::requestStatus);
 		WORK_EXECUTOR.execute(() -> {
 			daemonRunnable.run();
 			MAIN_HANDLER.post(() -> {
@@ -171,6 +374,7 @@ public abstract class BaseForegroundService extends Service {
 			});
 		});
 		this.daemonRunnable = daemonRunnable;
+		requestStatus();
 	}
 
 	private void postUpdateStop(String versionName) {
@@ -219,6 +423,8 @@ public abstract class BaseForegroundService extends Service {
 				updateInstallReceiver = null;
 				unregisterReceiver(this);
 				var status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+				Metrics.counter("binarywrapper_update_installs_total", "Update install outcomes by status.",
+						"status", Integer.toString(status)).inc();
 				var activity = status == PackageInstaller.STATUS_PENDING_USER_ACTION
 						? intent.<Intent>getParcelableExtra(Intent.EXTRA_INTENT)
 						: null;
@@ -320,8 +526,7 @@ public abstract class BaseForegroundService extends Service {
 		filter.addAction(DownloadManager.ACTION_NOTIFICATION_CLICKED);
 		registerReceiver(receiver, filter, null, MAIN_HANDLER);
 		updateDownloadReceiver = receiver;
-		var applicationInfo = getApplicationInfo();
-		var applicationLabel = getPackageManager().getApplicationLabel(applicationInfo);
+		var applicationLabel = getApplicationLabel();
 		var stop = getString(R.string.stop);
 		var request = new DownloadManager.Request(downloadUri)
 				.setDestinationInExternalFilesDir(this, Environment.DIRECTORY_DOWNLOADS, fileName)
@@ -331,16 +536,43 @@ public abstract class BaseForegroundService extends Service {
 		this.updateDownloadId = updateDownloadId;
 		WORK_EXECUTOR.execute(() -> {
 			var query = new DownloadManager.Query().setFilterById(updateDownloadId);
+			var bytes = Metrics.gauge("binarywrapper_update_download_bytes", "Update bytes downloaded so far.");
+			var totalBytes = Metrics.gauge("binarywrapper_update_download_total_bytes", "Update size in bytes.");
+			var throughput = Metrics.gauge("binarywrapper_update_download_bytes_per_second", "Update download throughput.");
 			try {
-				for (; ; Thread.sleep(1_000L)) {
+				for (long time = SystemClock.elapsedRealtime(), prevTime = time, prevBytes = 0L; ;
+						Thread.sleep(1_000L), time = SystemClock.elapsedRealtime()) {
 					try (var cursor = manager.query(query)) {
-						var status = cursor != null && cursor.moveToFirst()
+						var isFound = cursor != null && cursor.moveToFirst();
+						var status = isFound
 								? cursor.getInt(cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_STATUS))
 								: DownloadManager.STATUS_FAILED;
+						if (isFound) {
+							var value = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
+							bytes.set(value);
+							var total = cursor.getLong(cursor.getColumnIndexOrThrow(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
+							totalBytes.set(total);
+							var progress = total > 0L ? (int) (value * 10L / total) * 10 : -1;
+							if (progress != updateDownloadProgress) {
+								updateDownloadProgress = progress;
+								MAIN_HANDLER.post(this::requestStatus);
+							}
+							if (time > prevTime) {
+								throughput.set((value - prevBytes) * 1_000.0 / (time - prevTime));
+							}
+							prevTime = time;
+							prevBytes = value;
+						}
 						if (status == DownloadManager.STATUS_SUCCESSFUL || !versionName.equals(updateVersionName)) {
+							if (status == DownloadManager.STATUS_SUCCESSFUL) {
+								Metrics.counter("binarywrapper_update_downloads_total", "Update download outcomes.",
+										"status", "successful").inc();
+							}
 							return;
 						}
 						if (status == DownloadManager.STATUS_FAILED) {
+							Metrics.counter("binarywrapper_update_downloads_total", "Update download outcomes.",
+									"status", "failed").inc();
 							break;
 						}
 					}
@@ -356,6 +588,8 @@ public abstract class BaseForegroundService extends Service {
 		var versionName = updateVersionNameMsg;
 		updateVersionName = null;
 		updateVersionNameMsg = null;
+		updateDownloadProgress = -1;
+		requestStatus();
 		tryShowDifferent(this, versionName);
 		stopUpdateInstall();
 		stopUpdateDownload();
@@ -374,34 +608,43 @@ public abstract class BaseForegroundService extends Service {
 	private void startUpdate(String versionName) {
 		stopUpdate();
 		updateVersionName = versionName;
+		requestStatus();
 		startUpdateDownload(versionName);
 	}
 
 	private void stopMediaSession() {
+		var mediaSessionRunnable = this.mediaSessionRunnable;
+		if (mediaSessionRunnable != null) {
+			this.mediaSessionRunnable = null;
+			MAIN_HANDLER.removeCallbacks(mediaSessionRunnable);
+		}
 		var mediaSession = this.mediaSession;
 		if (mediaSession != null) {
 			this.mediaSession = null;
+			mediaSessionIcon = null;
 			mediaSession.setActive(false);
 			mediaSession.release();
 		}
 	}
 
-	private void startMediaSession(PendingIntent stopIntent) {
-		stopMediaSession();
-		var applicationInfo = getApplicationInfo();
-		var applicationIcon = BitmapFactory.decodeResource(getResources(), applicationInfo.icon);
-		var applicationLabel = getPackageManager().getApplicationLabel(applicationInfo).toString();
+	private MediaMetadata toMediaMetadata(Bitmap applicationIcon, String status) {
+		var applicationLabel = getApplicationLabel().toString();
 		var stop = getString(R.string.stop);
-		var mediaSession = new MediaSession(this, BuildConfig.LIBRARY_PACKAGE_NAME);
-		this.mediaSession = mediaSession;
-		mediaSession.setMetadata(new MediaMetadata.Builder()
+		return new MediaMetadata.Builder()
 				.putBitmap(MediaMetadata.METADATA_KEY_DISPLAY_ICON, applicationIcon)
 				.putString(MediaMetadata.METADATA_KEY_DISPLAY_TITLE, applicationLabel)
-				.putString(MediaMetadata.METADATA_KEY_DISPLAY_SUBTITLE, stop)
+				.putString(MediaMetadata.METADATA_KEY_DISPLAY_SUBTITLE, status != null ? status : stop)
 				.putString(MediaMetadata.METADATA_KEY_DISPLAY_DESCRIPTION, stop)
 				.putString(MediaMetadata.METADATA_KEY_TITLE, applicationLabel)
 				.putString(MediaMetadata.METADATA_KEY_ARTIST, stop)
-				.build());
+				.build();
+	}
+
+	private void startMediaSession(PendingIntent stopIntent, Bitmap applicationIcon) {
+		var mediaSession = new MediaSession(this, BuildConfig.LIBRARY_PACKAGE_NAME);
+		this.mediaSession = mediaSession;
+		mediaSessionIcon = applicationIcon;
+		mediaSession.setMetadata(toMediaMetadata(applicationIcon, status));
 		mediaSession.setPlaybackState(new PlaybackState.Builder()
 				.setState(PlaybackState.STATE_PLAYING, PlaybackState.PLAYBACK_POSITION_UNKNOWN, 1.0F)
 				.build());
@@ -409,8 +652,352 @@ public abstract class BaseForegroundService extends Service {
 		mediaSession.setActive(true);
 	}
 
+	private void startMediaSession(PendingIntent stopIntent) {
+		stopMediaSession();
+		var mediaSessionRunnable = new Runnable() {
+
+			private boolean isDecoded = false;
+
+			@Override
+			public void run() {
+				if (BaseForegroundService.this.mediaSessionRunnable != this) {
+					return;
+				}
+				var applicationIcon = BaseForegroundService.applicationIcon;
+				if (applicationIcon == null && !isDecoded) {
+					isDecoded = true;
+					IO_EXECUTOR.execute(() -> {
+						try {
+							getApplicationIcon();
+						} catch (Throwable t) {
+							Log.w(TAG, t);
+						}
+						MAIN_HANDLER.post(this);
+					});
+					return;
+				}
+				BaseForegroundService.this.mediaSessionRunnable = null;
+				try {
+					startMediaSession(stopIntent, applicationIcon);
+				} catch (Throwable t) {
+					Log.w(TAG, t);
+				}
+			}
+		};
+		MAIN_HANDLER.post(mediaSessionRunnable);
+		this.mediaSessionRunnable = mediaSessionRunnable;
+	}
+
+	private void stopMetricsServer() {
+		var metricsServer = this.metricsServer;
+		if (metricsServer != null) {
+			this.metricsServer = null;
+			try {
+				metricsServer.close();
+			} catch (Throwable t) {
+				Log.w(TAG, t);
+			}
+		}
+	}
+
+	private void startMetricsServer() {
+		stopMetricsServer();
+		var port = getMetricsPort();
+		if (port <= 0) {
+			return;
+		}
+		IO_EXECUTOR.execute(() -> {
+			try {
+				var metricsServer = new MetricsServer(port);
+				MAIN_HANDLER.post(() -> {
+					if (this.metricsServer == null && isCreated) {
+						this.metricsServer = metricsServer;
+					} else {
+						try {
+							metricsServer.close();
+						} catch (Throwable t) {
+							Log.w(TAG, t);
+						}
+					}
+				});
+			} catch (Throwable t) {
+				Log.w(TAG, t);
+			}
+		});
+	}
+
+	private String getStatus() {
+		var versionName = updateVersionName;
+		if (versionName != null) {
+			var progress = updateDownloadProgress;
+			return "\u21e9 " + versionName + (progress >= 0 ? " \u00b7 " + progress + "%" : "");
+		}
+		var daemonRunnable = this.daemonRunnable;
+		if (daemonRunnable == null) {
+			return null;
+		}
+		var restartCount = daemonRunnable.getRestartCount();
+		var restarts = restartCount > 0L ? " \u00b7 \u21bb" + restartCount : "";
+		if (daemonRunnable.isPaused()) {
+			return "\u23f8" + restarts;
+		}
+		if (daemonRunnable.isRunning()) {
+			return "\u25b6" + restarts;
+		}
+		return "\u2026" + restarts;
+	}
+
+	private void updateStatus(String status) {
+		if (Objects.equals(status, this.status)) {
+			return;
+		}
+		this.status = status;
+		Metrics.counter("binarywrapper_status_updates_total", "Status notification updates.").inc();
+		var builder = notificationBuilder;
+		var manager = getSystemService(NotificationManager.class);
+		if (builder != null && manager != null) {
+			var progress = updateDownloadProgress;
+			builder.setSubText(status);
+			if (updateVersionName != null) {
+				builder.setProgress(100, Math.max(progress, 0), progress < 0);
+			} else {
+				builder.setProgress(0, 0, false);
+			}
+			manager.notify(NOTIFICATION_ID, builder.build());
+		}
+		var mediaSession = this.mediaSession;
+		if (mediaSession != null) {
+			mediaSession.setMetadata(toMediaMetadata(mediaSessionIcon, status));
+		}
+	}
+
+	private void stopStatus() {
+		notificationBuilder = null;
+		var statusRunnable = this.statusRunnable;
+		if (statusRunnable != null) {
+			this.statusRunnable = null;
+			MAIN_HANDLER.removeCallbacks(statusRunnable);
+		}
+	}
+
+	private void requestStatus() {
+		var interval = getStatusInterval();
+		if (interval <= 0L || notificationBuilder == null || statusRunnable != null) {
+			return;
+		}
+		var statusRunnable = new Runnable() {
+
+			@Override
+			public void run() {
+				if (BaseForegroundService.this.statusRunnable != this) {
+					return;
+				}
+				BaseForegroundService.this.statusRunnable = null;
+				statusTime = SystemClock.elapsedRealtime();
+				try {
+					updateStatus(getStatus());
+				} catch (Throwable t) {
+					Log.w(TAG, t);
+				}
+			}
+		};
+		this.statusRunnable = statusRunnable;
+		MAIN_HANDLER.postDelayed(statusRunnable, Math.max(0L, statusTime + interval - SystemClock.elapsedRealtime()));
+	}
+
+	private boolean isUpdateCheckBusy() {
+		var powerManager = getSystemService(PowerManager.class);
+		if (powerManager != null && (powerManager.isPowerSaveMode() || powerManager.isDeviceIdleMode() ||
+				Build.VERSION.SDK_INT > Build.VERSION_CODES.P &&
+						powerManager.getCurrentThermalStatus() >= PowerManager.THERMAL_STATUS_SEVERE)) {
+			return true;
+		}
+		var connectivityManager = getSystemService(ConnectivityManager.class);
+		return connectivityManager == null ||
+				connectivityManager.getActiveNetwork() == null ||
+				connectivityManager.isActiveNetworkMetered();
+	}
+
+	private void stopUpdateCheck() {
+		var updateCheckRunnable = this.updateCheckRunnable;
+		if (updateCheckRunnable != null) {
+			this.updateCheckRunnable = null;
+			MAIN_HANDLER.removeCallbacks(updateCheckRunnable);
+		}
+	}
+
+	private void startUpdateCheck() {
+		stopUpdateCheck();
+		var uri = getUpdateCheckUri();
+		var interval = getUpdateCheckInterval();
+		if (uri == null || interval <= 0L) {
+			return;
+		}
+		var updateCheckRunnable = new Runnable() {
+
+			private UpdateChecker checker = null;
+
+			private int backoff = 0;
+
+			private void schedule(boolean isBackoff, String result) {
+				Metrics.counter("binarywrapper_update_checks_total", "Update checks by result.",
+						"result", result).inc();
+				MAIN_HANDLER.postDelayed(this, isBackoff ? (interval >> 3) << backoff : interval);
+				backoff = isBackoff ? Math.min(backoff + 1, 3) : 0;
+			}
+
+			private void onCheck(boolean isChecked, String checkVersionName) {
+				if (BaseForegroundService.this.updateCheckRunnable != this) {
+					return;
+				}
+				if (!isChecked) {
+					schedule(true, "failed");
+					return;
+				}
+				var versionName = getUpdateVersionName(checkVersionName);
+				if (versionName == null || updateVersionName != null) {
+					schedule(false, "current");
+					return;
+				}
+				Metrics.counter("binarywrapper_update_checks_total", "Update checks by result.",
+						"result", "update").inc();
+				stopUpdateCheck();
+				try {
+					stopDaemon();
+					startUpdate(versionName);
+				} catch (Throwable t) {
+					Log.w(TAG, t);
+					stopForeground();
+				}
+			}
+
+			@Override
+			public void run() {
+				if (BaseForegroundService.this.updateCheckRunnable != this) {
+					return;
+				}
+				if (isUpdateCheckBusy()) {
+					schedule(true, "busy");
+					return;
+				}
+				var checker = this.checker;
+				CHECK_EXECUTOR.execute(() -> {
+					var isChecked = false;
+					String versionName = null;
+					try {
+						versionName = getUpdateCheckVersionName(checker.check());
+						isChecked = true;
+					} catch (Throwable t) {
+						Log.w(TAG, t);
+					}
+					var result = isChecked;
+					var checkVersionName = versionName;
+					MAIN_HANDLER.post(() -> onCheck(result, checkVersionName));
+				});
+			}
+		};
+		this.updateCheckRunnable = updateCheckRunnable;
+		CHECK_EXECUTOR.execute(() -> {
+			try {
+				var checker = new UpdateChecker(new URL(uri.toString()),
+						new File(getCacheDir(), BuildConfig.LIBRARY_PACKAGE_NAME + ".update"));
+				var delay = Math.max(0L, checker.getCheckTime() + interval - System.currentTimeMillis());
+				MAIN_HANDLER.post(() -> {
+					if (this.updateCheckRunnable == updateCheckRunnable) {
+						updateCheckRunnable.checker = checker;
+						MAIN_HANDLER.postDelayed(updateCheckRunnable, Math.min(delay, interval));
+					}
+				});
+			} catch (Throwable t) {
+				Log.w(TAG, t);
+			}
+		});
+	}
+
+	private void updateThrottle() {
+		var throttlePolicy = this.throttlePolicy;
+		if (throttlePolicy == null) {
+			return;
+		}
+		var prevAction = throttlePolicy.getAction();
+		var action = throttlePolicy.update(throttleSource);
+		if (action != prevAction) {
+			Metrics.counter("binarywrapper_throttle_transitions_total", "Throttle transitions by action.",
+					"action", action.name()).inc();
+		}
+		var daemonRunnable = this.daemonRunnable;
+		if (daemonRunnable != null) {
+			daemonRunnable.throttle(action);
+		}
+	}
+
+	private void updateBattery(Intent intent) {
+		var level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+		var scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+		if (level >= 0 && scale > 0) {
+			batteryLevel = level * 100 / scale;
+		}
+		isCharging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+	}
+
+	private void stopThrottle() {
+		var throttleReceiver = this.throttleReceiver;
+		if (throttleReceiver != null) {
+			this.throttleReceiver = null;
+			unregisterReceiver(throttleReceiver);
+		}
+		var throttleThermalListener = this.throttleThermalListener;
+		if (throttleThermalListener != null) {
+			this.throttleThermalListener = null;
+			var manager = getSystemService(PowerManager.class);
+			if (manager != null) {
+				manager.removeThermalStatusListener(throttleThermalListener);
+			}
+		}
+		throttlePolicy = null;
+	}
+
+	private void startThrottle() {
+		stopThrottle();
+		var throttlePolicy = getThrottlePolicy();
+		if (throttlePolicy == null) {
+			return;
+		}
+		this.throttlePolicy = throttlePolicy;
+		var receiver = new BroadcastReceiver() {
+
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				if (intent != null && Intent.ACTION_BATTERY_CHANGED.equals(intent.getAction())) {
+					updateBattery(intent);
+				}
+				updateThrottle();
+			}
+		};
+		var filter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+		filter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED);
+		var battery = registerReceiver(receiver, filter, null, MAIN_HANDLER);
+		throttleReceiver = receiver;
+		if (battery != null) {
+			updateBattery(battery);
+		}
+		var manager = getSystemService(PowerManager.class);
+		if (manager != null && Build.VERSION.SDK_INT > Build.VERSION_CODES.P) {
+			PowerManager.OnThermalStatusChangedListener listener = status -> {
+				thermalStatus = status;
+				updateThrottle();
+			};
+			thermalStatus = manager.getCurrentThermalStatus();
+			manager.addThermalStatusListener(getMainExecutor(), listener);
+			throttleThermalListener = listener;
+		}
+		updateThrottle();
+	}
+
 	@Override
 	public void onCreate() {
+		createTime = SystemClock.elapsedRealtime();
+		isCreated = true;
 		try {
 			var stopIntent = PendingIntent.getActivity(
 					this,
@@ -419,6 +1006,9 @@ public abstract class BaseForegroundService extends Service {
 					PendingIntent.FLAG_IMMUTABLE);
 			startForeground(stopIntent);
 			startMediaSession(stopIntent);
+			startThrottle();
+			startMetricsServer();
+			startUpdateCheck();
 		} catch (Throwable t) {
 			Log.w(TAG, t);
 		}
@@ -448,15 +1038,65 @@ public abstract class BaseForegroundService extends Service {
 
 	@Override
 	public void onDestroy() {
+		isCreated = false;
 		try {
+			stopUpdateCheck();
 			stopDaemon();
 			stopUpdate();
+			stopStatus();
 			stopMediaSession();
+			stopThrottle();
+			stopMetricsServer();
 		} catch (Throwable t) {
 			Log.w(TAG, t);
 		}
 	}
 
+	@Override
+	public void onConfigurationChanged(Configuration newConfig) {
+		applicationLabel = null;
+	}
+
+	@Override
+	public void onTrimMemory(int level) {
+		if (level == TRIM_MEMORY_UI_HIDDEN) {
+			return;
+		}
+		if (level == TRIM_MEMORY_COMPLETE) {
+			var time = SystemClock.elapsedRealtime();
+			var lowMemoryTime = this.lowMemoryTime;
+			this.lowMemoryTime = time;
+			if (lowMemoryTime != 0L && time - lowMemoryTime < LOW_MEMORY_WINDOW) {
+				return;
+			}
+		}
+		try {
+			Log.v(TAG, "TRIM_MEMORY_LEVEL = " + level);
+			Metrics.counter("binarywrapper_memory_pressure_events_total", "Memory pressure events by trim level.",
+					"level", Integer.toString(level)).inc();
+			if (level >= TRIM_MEMORY_MODERATE) {
+				applicationIcon = null;
+			}
+			synchronized (memoryPressureEvents) {
+				if (memoryPressureEvents.size() == MEMORY_PRESSURE_EVENTS_COUNT) {
+					memoryPressureEvents.pollFirst();
+				}
+				memoryPressureEvents.addLast(new MemoryPressureEvent(System.currentTimeMillis(), level));
+			}
+			var daemonRunnable = this.daemonRunnable;
+			if (daemonRunnable != null) {
+				daemonRunnable.trimMemory(level);
+			}
+		} catch (Throwable t) {
+			Log.w(TAG, t);
+		}
+	}
+
+	@Override
+	public void onLowMemory() {
+		onTrimMemory(TRIM_MEMORY_COMPLETE);
+	}
+
 	@Override
 	public IBinder onBind(Intent intent) {
 		return null;
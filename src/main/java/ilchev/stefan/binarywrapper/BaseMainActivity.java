@@ -4,6 +4,7 @@ import android.Manifest;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.AppOpsManager;
 import android.app.Dialog;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -11,13 +12,16 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -29,8 +33,31 @@ public abstract class BaseMainActivity extends Activity {
 		MANAGE_EXTERNAL_STORAGE
 	}
 
+	private static final class PermissionPlan {
+
+		private final String versionKey;
+
+		private final String versionName;
+
+		private final Set<String> permissions;
+
+		private PermissionPlan(String versionKey, String versionName, Set<String> permissions) {
+			this.versionKey = versionKey;
+			this.versionName = versionName;
+			this.permissions = permissions;
+		}
+	}
+
 	private static final String TAG = "BaseMainActivity";
 
+	private static final String PERMISSION_PLAN_VERSION_KEY = "PERMISSION_PLAN_VERSION_KEY";
+
+	private static final String PERMISSION_PLAN_VERSION_NAME = "PERMISSION_PLAN_VERSION_NAME";
+
+	private static final String PERMISSION_PLAN_PERMISSIONS = "PERMISSION_PLAN_PERMISSIONS";
+
+	private static volatile PermissionPlan permissionPlan = null;
+
 	@SuppressLint("InlinedApi")
 	private static final String ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION =
 			Settings.ACTION_MANAGE_APP_ALL_FILES_ACCESS_PERMISSION;
@@ -51,6 +78,10 @@ public abstract class BaseMainActivity extends Activity {
 
 	private Dialog allowCmdDialog = null;
 
+	private AppOpsManager.OnOpChangedListener allowCmdListener = null;
+
+	private long createTime = 0L;
+
 	protected abstract Class<?> getForegroundServiceClass();
 
 	protected String getVersionName() {
@@ -109,6 +140,14 @@ public abstract class BaseMainActivity extends Activity {
 	}
 
 	private void hideAllowCmd() {
+		var allowCmdListener = this.allowCmdListener;
+		if (allowCmdListener != null) {
+			this.allowCmdListener = null;
+			var manager = getSystemService(AppOpsManager.class);
+			if (manager != null) {
+				manager.stopWatchingMode(allowCmdListener);
+			}
+		}
 		var allowCmdRunnable = this.allowCmdRunnable;
 		if (allowCmdRunnable != null) {
 			this.allowCmdRunnable = null;
@@ -127,6 +166,23 @@ public abstract class BaseMainActivity extends Activity {
 		var applicationIcon = applicationInfo.icon;
 		var applicationLabel = getPackageManager().getApplicationLabel(applicationInfo);
 		var cmd = "adb shell appops set --uid " + getPackageName() + " " + permission + " allow";
+		var allowCmdRunnable = new Runnable() {
+
+			@Override
+			public void run() {
+				if (BaseMainActivity.this.allowCmdRunnable != this || isFinishing() || isDestroyed()) {
+					return;
+				}
+				var intent = getIntent();
+				if (intent == null || intent.getAction() == null) {
+					callForegroundServiceAndFinish();
+				} else if (allowCmdDialog != null && allowCmdDialog.isShowing() && !supplier.get()) {
+					return;
+				} else if (requestRequestedPermissions() == null) {
+					callForegroundServiceAndFinish();
+				}
+			}
+		};
 		var allowCmdDialog = new AlertDialog.Builder(this)
 				.setIcon(applicationIcon)
 				.setTitle(applicationLabel)
@@ -143,28 +199,24 @@ public abstract class BaseMainActivity extends Activity {
 				})
 				.setNeutralButton(R.string.close_app, (dialog, which) ->
 						setIntent(null))
+				.setOnDismissListener(dialog ->
+						BaseForegroundService.MAIN_HANDLER.post(allowCmdRunnable))
 				.setCancelable(false)
 				.show();
 		this.allowCmdDialog = allowCmdDialog;
-		var allowCmdRunnable = new Runnable() {
-
-			@Override
-			public void run() {
-				if (isFinishing() || isDestroyed()) {
-					return;
-				}
-				var intent = getIntent();
-				if (intent == null || intent.getAction() == null) {
-					callForegroundServiceAndFinish();
-				} else if (allowCmdDialog.isShowing() && !supplier.get()) {
-					BaseForegroundService.MAIN_HANDLER.postDelayed(this, 100L);
-				} else if (requestRequestedPermissions() == null) {
-					callForegroundServiceAndFinish();
+		this.allowCmdRunnable = allowCmdRunnable;
+		var manager = getSystemService(AppOpsManager.class);
+		var op = AppOpsManager.permissionToOp("android.permission." + permission);
+		if (manager != null && op != null) {
+			AppOpsManager.OnOpChangedListener listener = (changedOp, packageName) -> {
+				if (getPackageName().equals(packageName)) {
+					BaseForegroundService.MAIN_HANDLER.post(allowCmdRunnable);
 				}
-			}
-		};
+			};
+			manager.startWatchingMode(op, getPackageName(), listener);
+			allowCmdListener = listener;
+		}
 		BaseForegroundService.MAIN_HANDLER.post(allowCmdRunnable);
-		this.allowCmdRunnable = allowCmdRunnable;
 	}
 
 	private boolean request(
@@ -186,14 +238,52 @@ public abstract class BaseMainActivity extends Activity {
 		return true;
 	}
 
-	private String[] requestRequestedPermissions() {
-		try {
+	private PermissionPlan getPermissionPlan() throws Exception {
+		var sourceDir = getApplicationInfo().sourceDir;
+		var versionKey = sourceDir + ":" + new File(sourceDir).lastModified() + ":" + Build.VERSION.SDK_INT;
+		var permissionPlan = BaseMainActivity.permissionPlan;
+		if (permissionPlan != null && permissionPlan.versionKey.equals(versionKey)) {
+			return permissionPlan;
+		}
+		var sharedPreferences = getSharedPreferences(BuildConfig.LIBRARY_PACKAGE_NAME, MODE_PRIVATE);
+		var versionName = sharedPreferences.getString(PERMISSION_PLAN_VERSION_NAME, null);
+		var permissions = sharedPreferences.getStringSet(PERMISSION_PLAN_PERMISSIONS, null);
+		if (versionName == null || permissions == null ||
+				!versionKey.equals(sharedPreferences.getString(PERMISSION_PLAN_VERSION_KEY, null))) {
 			var packageInfo = getPackageManager().getPackageInfo(getPackageName(), PackageManager.GET_PERMISSIONS);
 			var set = packageInfo.requestedPermissions != null
 					? new HashSet<>(Arrays.asList(packageInfo.requestedPermissions))
-					: Collections.<String>emptySet();
+					: new HashSet<String>();
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+				set.remove(FOREGROUND_SERVICE);
+			}
+			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
+				set.remove(UPDATE_PACKAGES_WITHOUT_USER_ACTION);
+			}
+			if (Build.VERSION.SDK_INT > Build.VERSION_CODES.Q) {
+				set.remove(Manifest.permission.READ_EXTERNAL_STORAGE);
+				set.remove(Manifest.permission.WRITE_EXTERNAL_STORAGE);
+			}
+			versionName = packageInfo.versionName;
+			permissions = set;
+			sharedPreferences.edit()
+					.putString(PERMISSION_PLAN_VERSION_KEY, versionKey)
+					.putString(PERMISSION_PLAN_VERSION_NAME, versionName)
+					.putStringSet(PERMISSION_PLAN_PERMISSIONS, permissions)
+					.apply();
+		}
+		permissionPlan = new PermissionPlan(versionKey, versionName, Collections.unmodifiableSet(permissions));
+		BaseMainActivity.permissionPlan = permissionPlan;
+		return permissionPlan;
+	}
+
+	private String[] requestRequestedPermissions() {
+		try {
+			var permissionPlan = getPermissionPlan();
+			var set = new HashSet<>(permissionPlan.permissions);
+			var versionName = getVersionName();
 			if (set.remove(Manifest.permission.REQUEST_INSTALL_PACKAGES) &&
-					BaseForegroundService.getUpdate(packageInfo, getVersionName()) != null &&
+					versionName != null && !permissionPlan.versionName.equals(versionName) &&
 					request(
 							"REQUEST_INSTALL_PACKAGES",
 							this::isInstallPackagesRequester,
@@ -212,16 +302,7 @@ public abstract class BaseMainActivity extends Activity {
 							RequestCode.MANAGE_EXTERNAL_STORAGE)) {
 				return new String[]{MANAGE_EXTERNAL_STORAGE};
 			}
-			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
-				set.remove(FOREGROUND_SERVICE);
-			}
-			if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) {
-				set.remove(UPDATE_PACKAGES_WITHOUT_USER_ACTION);
-			}
-			if (Build.VERSION.SDK_INT > Build.VERSION_CODES.Q) {
-				set.remove(Manifest.permission.READ_EXTERNAL_STORAGE);
-				set.remove(Manifest.permission.WRITE_EXTERNAL_STORAGE);
-			}
+			set.removeIf(it -> checkSelfPermission(it) == PackageManager.PERMISSION_GRANTED);
 			if (!set.isEmpty()) {
 				var permissions = set.toArray(new String[]{});
 				requestPermissions(permissions, RequestCode.REQUESTED_PERMISSIONS.ordinal());
@@ -243,6 +324,7 @@ public abstract class BaseMainActivity extends Activity {
 				BaseForegroundService.tryShowDifferent(this, getVersionName());
 			} else {
 				startForegroundService(service);
+				Log.v(TAG, "START_SERVICE_DURATION = " + (SystemClock.elapsedRealtime() - createTime));
 			}
 		} catch (Throwable t) {
 			Log.w(TAG, t);
@@ -250,6 +332,12 @@ public abstract class BaseMainActivity extends Activity {
 		finish();
 	}
 
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+		createTime = SystemClock.elapsedRealtime();
+	}
+
 	@Override
 	protected void onResume() {
 		super.onResume();
@@ -0,0 +1,234 @@
+package ilchev.stefan.binarywrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+public final class CommandChannel {
+
+	private static final class Command {
+
+		private final byte[] bytes;
+
+		private final Predicate<String> matcher;
+
+		private final CompletableFuture<String> response = new CompletableFuture<>();
+
+		private Command(String text, Predicate<String> matcher) {
+			bytes = (text + "\n").getBytes(StandardCharsets.UTF_8);
+			this.matcher = matcher;
+		}
+	}
+
+	private final String name;
+
+	private final ArrayBlockingQueue<Command> queue;
+
+	private final ArrayDeque<Command> batch = new ArrayDeque<>();
+
+	private final LinkedBlockingDeque<Command> responses;
+
+	private final LongAdder writtenCount = new LongAdder();
+
+	private final LongAdder batchCount = new LongAdder();
+
+	private final LongAdder rejectedCount = new LongAdder();
+
+	private final LongAdder droppedCount = new LongAdder();
+
+	private OutputStream out = null;
+
+	private Thread writer = null;
+
+	private boolean isClosed = false;
+
+	CommandChannel(String name, int capacity) {
+		this.name = name;
+		queue = new ArrayBlockingQueue<>(capacity);
+		responses = new LinkedBlockingDeque<>(capacity);
+	}
+
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	public int getRemainingCapacity() {
+		return queue.remainingCapacity();
+	}
+
+	public long getWrittenCount() {
+		return writtenCount.sum();
+	}
+
+	public long getBatchCount() {
+		return batchCount.sum();
+	}
+
+	public long getRejectedCount() {
+		return rejectedCount.sum();
+	}
+
+	public int getPendingCount() {
+		return responses.size();
+	}
+
+	public long getDroppedCount() {
+		return droppedCount.sum();
+	}
+
+	public CompletableFuture<String> send(String text, Predicate<String> matcher) {
+		var command = new Command(text, matcher);
+		synchronized (this) {
+			if (isClosed) {
+				command.response.completeExceptionally(new CancellationException(name));
+				return command.response;
+			}
+			if (writer == null) {
+				writer = new Thread(this::run, name);
+				writer.setDaemon(true);
+				writer.start();
+			}
+			if (!queue.offer(command)) {
+				rejectedCount.increment();
+				command.response.completeExceptionally(new RejectedExecutionException(name));
+			}
+		}
+		return command.response;
+	}
+
+	public CompletableFuture<String> send(String text) {
+		return send(text, null);
+	}
+
+	synchronized void attach(OutputStream out) {
+		this.out = out;
+		notifyAll();
+	}
+
+	void detach(OutputStream out) {
+		synchronized (this) {
+			if (this.out != out) {
+				return;
+			}
+			this.out = null;
+		}
+		for (Command command; (command = responses.poll()) != null; ) {
+			command.response.completeExceptionally(new IOException(name));
+		}
+	}
+
+	void onLine(String line) {
+		for (var iterator = responses.iterator(); iterator.hasNext(); ) {
+			var command = iterator.next();
+			if (command.matcher.test(line)) {
+				iterator.remove();
+				command.response.complete(line);
+				return;
+			}
+		}
+	}
+
+	private synchronized boolean isAttached(OutputStream out) {
+		return this.out == out;
+	}
+
+	private synchronized OutputStream awaitOut() throws InterruptedException {
+		while (out == null && !isClosed) {
+			wait();
+		}
+		return out;
+	}
+
+	private void addResponse(Command command) {
+		while (!responses.offerLast(command)) {
+			var oldest = responses.pollFirst();
+			if (oldest != null) {
+				droppedCount.increment();
+				oldest.response.completeExceptionally(new RejectedExecutionException(name));
+			}
+		}
+	}
+
+	private void write(OutputStream out) throws IOException {
+		var buffer = new ByteArrayOutputStream();
+		for (var command : batch) {
+			buffer.write(command.bytes);
+			if (command.matcher != null) {
+				addResponse(command);
+			}
+		}
+		try {
+			buffer.writeTo(out);
+			out.flush();
+		} catch (IOException e) {
+			responses.removeAll(batch);
+			throw e;
+		}
+		batchCount.increment();
+		for (Command command; (command = batch.poll()) != null; ) {
+			writtenCount.increment();
+			if (command.matcher == null) {
+				command.response.complete(null);
+			}
+		}
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				var out = awaitOut();
+				if (out == null) {
+					break;
+				}
+				if (batch.isEmpty()) {
+					batch.add(queue.take());
+				}
+				queue.drainTo(batch);
+				if (!isAttached(out)) {
+					continue;
+				}
+				try {
+					write(out);
+				} catch (IOException ignore) {
+					detach(out);
+				}
+			}
+		} catch (InterruptedException ignore) {
+		}
+		cancel(batch.iterator());
+		cancel(queue.iterator());
+		cancel(responses.iterator());
+	}
+
+	private static void cancel(Iterator<Command> iterator) {
+		while (iterator.hasNext()) {
+			var command = iterator.next();
+			iterator.remove();
+			command.response.cancel(false);
+		}
+	}
+
+	void close() {
+		Thread writer;
+		synchronized (this) {
+			isClosed = true;
+			writer = this.writer;
+			notifyAll();
+		}
+		if (writer != null) {
+			writer.interrupt();
+		} else {
+			cancel(queue.iterator());
+		}
+	}
+}
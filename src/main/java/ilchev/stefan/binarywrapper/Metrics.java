@@ -0,0 +1,223 @@
+package ilchev.stefan.binarywrapper;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+public final class Metrics {
+
+	public static abstract class Metric {
+
+		private final String type;
+
+		private final String name;
+
+		private final String help;
+
+		private final String labels;
+
+		private Metric(String type, String name, String help, String labels) {
+			this.type = type;
+			this.name = name;
+			this.help = help;
+			this.labels = labels;
+		}
+
+		abstract void write(Appendable out) throws IOException;
+	}
+
+	public static final class Counter extends Metric {
+
+		private final LongAdder value = new LongAdder();
+
+		private Counter(String name, String help, String labels) {
+			super("counter", name, help, labels);
+		}
+
+		public void inc() {
+			value.increment();
+		}
+
+		public void add(long delta) {
+			value.add(delta);
+		}
+
+		public long get() {
+			return value.sum();
+		}
+
+		@Override
+		void write(Appendable out) throws IOException {
+			writeSample(out, super.name, super.labels, null, get());
+		}
+	}
+
+	public static final class Gauge extends Metric {
+
+		private final AtomicLong bits = new AtomicLong(Double.doubleToRawLongBits(0.0));
+
+		private final DoubleSupplier supplier;
+
+		private Gauge(String name, String help, String labels, DoubleSupplier supplier) {
+			super("gauge", name, help, labels);
+			this.supplier = supplier;
+		}
+
+		public void set(double value) {
+			bits.set(Double.doubleToRawLongBits(value));
+		}
+
+		public double get() {
+			return supplier != null ? supplier.getAsDouble() : Double.longBitsToDouble(bits.get());
+		}
+
+		@Override
+		void write(Appendable out) throws IOException {
+			writeSample(out, super.name, super.labels, null, get());
+		}
+	}
+
+	public static final class Histogram extends Metric {
+
+		private final double[] bounds;
+
+		private final AtomicLongArray counts;
+
+		private final DoubleAdder sum = new DoubleAdder();
+
+		private Histogram(String name, String help, String labels, double[] bounds) {
+			super("histogram", name, help, labels);
+			this.bounds = bounds;
+			counts = new AtomicLongArray(bounds.length + 1);
+		}
+
+		public void observe(double value) {
+			var i = 0;
+			while (i < bounds.length && value > bounds[i]) {
+				++i;
+			}
+			counts.incrementAndGet(i);
+			sum.add(value);
+		}
+
+		@Override
+		void write(Appendable out) throws IOException {
+			var name = super.name;
+			var labels = super.labels;
+			var count = 0L;
+			for (var i = 0; i < bounds.length; ++i) {
+				count += counts.get(i);
+				writeSample(out, name + "_bucket", labels, "le=\"" + bounds[i] + "\"", count);
+			}
+			count += counts.get(bounds.length);
+			writeSample(out, name + "_bucket", labels, "le=\"+Inf\"", count);
+			writeSample(out, name + "_sum", labels, null, sum.sum());
+			writeSample(out, name + "_count", labels, null, count);
+		}
+	}
+
+	public static final double[] DURATION_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0};
+
+	private static final Map<String, Metric> METRICS = new ConcurrentSkipListMap<>();
+
+	private Metrics() {
+	}
+
+	private static String toLabels(String... labels) {
+		if (labels.length == 0) {
+			return "";
+		}
+		var result = new StringBuilder();
+		for (var i = 0; i + 1 < labels.length; i += 2) {
+			if (result.length() > 0) {
+				result.append(',');
+			}
+			result.append(labels[i]).append("=\"")
+					.append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+					.append('"');
+		}
+		return result.toString();
+	}
+
+	private static void writeSample(Appendable out, String name, String labels, String extra, double value)
+			throws IOException {
+		out.append(name);
+		if (!labels.isEmpty() || extra != null) {
+			out.append('{').append(labels);
+			if (!labels.isEmpty() && extra != null) {
+				out.append(',');
+			}
+			if (extra != null) {
+				out.append(extra);
+			}
+			out.append('}');
+		}
+		out.append(' ');
+		if (Double.isInfinite(value)) {
+			out.append(value > 0.0 ? "+Inf" : "-Inf");
+		} else if (value == (long) value) {
+			out.append(Long.toString((long) value));
+		} else {
+			out.append(Double.toString(value));
+		}
+		out.append('\n');
+	}
+
+	private static Metric get(String type, String name, String help, String[] labels, Function<String, Metric> factory) {
+		var key = name + '{' + toLabels(labels) + '}';
+		var result = METRICS.get(key);
+		if (result == null) {
+			result = METRICS.computeIfAbsent(key, it -> factory.apply(toLabels(labels)));
+		}
+		if (!result.type.equals(type)) {
+			throw new IllegalArgumentException(key);
+		}
+		return result;
+	}
+
+	public static Counter counter(String name, String help, String... labels) {
+		return (Counter) get("counter", name, help, labels, it -> new Counter(name, help, it));
+	}
+
+	public static Gauge gauge(String name, String help, String... labels) {
+		return (Gauge) get("gauge", name, help, labels, it -> new Gauge(name, help, it, null));
+	}
+
+	public static Gauge gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+		return (Gauge) get("gauge", name, help, labels, it -> new Gauge(name, help, it, supplier));
+	}
+
+	public static Histogram histogram(String name, String help, double[] bounds, String... labels) {
+		return (Histogram) get("histogram", name, help, labels, it -> new Histogram(name, help, it, bounds));
+	}
+
+	public static void write(Appendable out) throws IOException {
+		String name = null;
+		for (var metric : METRICS.values()) {
+			if (!metric.name.equals(name)) {
+				name = metric.name;
+				out.append("# HELP ").append(name).append(' ')
+						.append(metric.help.replace("\\", "\\\\").replace("\n", "\\n"))
+						.append('\n');
+				out.append("# TYPE ").append(name).append(' ').append(metric.type).append('\n');
+			}
+			metric.write(out);
+		}
+	}
+
+	public static String toText() {
+		var result = new StringBuilder();
+		try {
+			write(result);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return result.toString();
+	}
+}
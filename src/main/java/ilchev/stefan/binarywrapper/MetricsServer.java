@@ -0,0 +1,69 @@
+package ilchev.stefan.binarywrapper;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+public final class MetricsServer implements Runnable, AutoCloseable {
+
+	private static final String TAG = "MetricsServer";
+
+	private static final int SO_TIMEOUT = 5_000;
+
+	private final ServerSocket serverSocket;
+
+	public MetricsServer(int port) throws Exception {
+		serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+		var thread = new Thread(this, TAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	private static void respond(Socket socket) throws Exception {
+		socket.setSoTimeout(SO_TIMEOUT);
+		var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+		var requestLine = reader.readLine();
+		for (var line = requestLine; line != null && !line.isEmpty(); ) {
+			line = reader.readLine();
+		}
+		var parts = requestLine != null ? requestLine.split(" ") : new String[]{};
+		var isFound = parts.length > 1 && "GET".equals(parts[0]) &&
+				("/metrics".equals(parts[1]) || "/".equals(parts[1]));
+		var body = (isFound ? Metrics.toText() : "Not Found\n").getBytes(StandardCharsets.UTF_8);
+		var header = (isFound ? "HTTP/1.1 200 OK\r\n" : "HTTP/1.1 404 Not Found\r\n") +
+				"Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n" +
+				"Content-Length: " + body.length + "\r\n" +
+				"Connection: close\r\n\r\n";
+		var out = socket.getOutputStream();
+		out.write(header.getBytes(StandardCharsets.US_ASCII));
+		out.write(body);
+		out.flush();
+	}
+
+	@Override
+	public void run() {
+		while (!serverSocket.isClosed()) {
+			try (var socket = serverSocket.accept()) {
+				respond(socket);
+			} catch (Throwable t) {
+				if (!serverSocket.isClosed()) {
+					Log.w(TAG, t);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() throws Exception {
+		serverSocket.close();
+	}
+}
@@ -0,0 +1,74 @@
+package ilchev.stefan.binarywrapper;
+
+abstract class ProcessHandoff {
+
+	private volatile boolean isDestroyed = false;
+
+	private Process process = null;
+
+	private final Runnable destroyRunnable = () -> {
+		var process = this.process;
+		if (process != null) {
+			this.process = null;
+			process.destroy();
+			onDestroy(process);
+		}
+	};
+
+	private final Runnable clearRunnable = () -> {
+		process = null;
+		onClear();
+	};
+
+	abstract boolean isMainThread();
+
+	abstract boolean post(Runnable runnable);
+
+	abstract CommandChannel getCommandChannel();
+
+	void onSet(Process process) {
+	}
+
+	void onClear() {
+	}
+
+	void onDestroy(Process process) {
+	}
+
+	boolean isDestroyed() {
+		return isDestroyed;
+	}
+
+	Process getProcess() {
+		return process;
+	}
+
+	void destroy() {
+		isDestroyed = true;
+		if (isMainThread()) {
+			destroyRunnable.run();
+		} else {
+			post(destroyRunnable);
+		}
+	}
+
+	boolean start(Process value) {
+		if (!post(() -> {
+			if (isDestroyed) {
+				value.destroy();
+			} else {
+				process = value;
+				onSet(value);
+			}
+		})) {
+			return false;
+		}
+		getCommandChannel().attach(value.getOutputStream());
+		return true;
+	}
+
+	boolean exit(Process value) {
+		getCommandChannel().detach(value.getOutputStream());
+		return !isDestroyed && post(clearRunnable);
+	}
+}
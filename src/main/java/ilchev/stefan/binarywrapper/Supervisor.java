@@ -0,0 +1,57 @@
+package ilchev.stefan.binarywrapper;
+
+import java.util.Scanner;
+import java.util.Set;
+
+abstract class Supervisor {
+
+	abstract boolean isDestroyed();
+
+	abstract Set<Integer> getExitValuesEnd();
+
+	abstract Set<Integer> getExitValuesSkip();
+
+	abstract Set<Integer> getExitValuesStart();
+
+	abstract int getRetriesCount();
+
+	abstract long getRetryDelay();
+
+	abstract Process start() throws Exception;
+
+	abstract boolean onStart(Process process, boolean isRestart);
+
+	abstract void onLine(String line);
+
+	abstract boolean onExit(int exitValue);
+
+	void run() throws Exception {
+		var isStarted = false;
+		for (var attempt = 0; !isDestroyed(); Thread.sleep(getRetryDelay())) {
+			var process = start();
+			var isRestart = isStarted;
+			isStarted = true;
+			if (!onStart(process, isRestart)) {
+				process.destroy();
+				break;
+			}
+			try (var scanner = new Scanner(process.getInputStream())) {
+				while (scanner.hasNextLine()) {
+					onLine(scanner.nextLine());
+				}
+			}
+			var exitValue = process.waitFor();
+			if (!onExit(exitValue) || getExitValuesEnd().contains(exitValue)) {
+				break;
+			}
+			if (getExitValuesSkip().contains(exitValue)) {
+				continue;
+			}
+			if (getExitValuesStart().contains(exitValue)) {
+				attempt = 0;
+			} else if (++attempt > getRetriesCount()) {
+				break;
+			}
+		}
+	}
+}
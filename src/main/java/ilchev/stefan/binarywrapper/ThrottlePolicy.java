@@ -0,0 +1,114 @@
+package ilchev.stefan.binarywrapper;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ThrottlePolicy {
+
+	public enum Action {
+		NONE,
+		SIGNAL,
+		RENICE,
+		PAUSE
+	}
+
+	public interface Source {
+
+		int getThermalStatus();
+
+		int getBatteryLevel();
+
+		boolean isCharging();
+
+		boolean isPowerSaveMode();
+	}
+
+	public static final class Transition {
+
+		public final long time;
+
+		public final Action from;
+
+		public final Action to;
+
+		private Transition(long time, Action from, Action to) {
+			this.time = time;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public String toString() {
+			return time + ": " + from + " -> " + to;
+		}
+	}
+
+	private static final int TRANSITIONS_COUNT = 32;
+
+	private final ArrayDeque<Transition> transitions = new ArrayDeque<>();
+
+	private Action action = Action.NONE;
+
+	protected int getThermalStatusSignal() {
+		return 1;
+	}
+
+	protected int getThermalStatusRenice() {
+		return 2;
+	}
+
+	protected int getThermalStatusPause() {
+		return 3;
+	}
+
+	protected int getBatteryLevelRenice() {
+		return 15;
+	}
+
+	protected int getBatteryLevelPause() {
+		return 5;
+	}
+
+	protected boolean isPowerSaveModeRenice() {
+		return false;
+	}
+
+	protected Action evaluate(Source source) {
+		var thermalStatus = source.getThermalStatus();
+		var batteryLevel = source.isCharging() ? Integer.MAX_VALUE : source.getBatteryLevel();
+		if (thermalStatus >= getThermalStatusPause() || batteryLevel <= getBatteryLevelPause()) {
+			return Action.PAUSE;
+		}
+		var isPowerSaveMode = source.isPowerSaveMode();
+		if (thermalStatus >= getThermalStatusRenice() || batteryLevel <= getBatteryLevelRenice() ||
+				isPowerSaveMode && isPowerSaveModeRenice()) {
+			return Action.RENICE;
+		}
+		if (thermalStatus >= getThermalStatusSignal() || isPowerSaveMode) {
+			return Action.SIGNAL;
+		}
+		return Action.NONE;
+	}
+
+	public synchronized Action getAction() {
+		return action;
+	}
+
+	public synchronized List<Transition> getTransitions() {
+		return new ArrayList<>(transitions);
+	}
+
+	public synchronized Action update(Source source) {
+		var from = action;
+		var to = evaluate(source);
+		if (to != from) {
+			action = to;
+			if (transitions.size() == TRANSITIONS_COUNT) {
+				transitions.pollFirst();
+			}
+			transitions.addLast(new Transition(System.currentTimeMillis(), from, to));
+		}
+		return to;
+	}
+}
@@ -0,0 +1,153 @@
+package ilchev.stefan.binarywrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class UpdateChecker {
+
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final int TIMEOUT = 15_000;
+
+	private final URL url;
+
+	private final File cache;
+
+	private final AtomicLong fetchCount = new AtomicLong();
+
+	private final AtomicLong notModifiedCount = new AtomicLong();
+
+	private final AtomicLong failureCount = new AtomicLong();
+
+	private String etag = null;
+
+	private String lastModified = null;
+
+	private String body = null;
+
+	private boolean isLoaded = false;
+
+	public UpdateChecker(URL url, File cache) {
+		this.url = url;
+		this.cache = cache;
+	}
+
+	public long getFetchCount() {
+		return fetchCount.get();
+	}
+
+	public long getNotModifiedCount() {
+		return notModifiedCount.get();
+	}
+
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	public long getCheckTime() {
+		return cache.lastModified();
+	}
+
+	private static byte[] readAllBytes(InputStream in) throws IOException {
+		var out = new ByteArrayOutputStream();
+		var buffer = new byte[8192];
+		for (int count; (count = in.read(buffer)) >= 0; ) {
+			out.write(buffer, 0, count);
+		}
+		return out.toByteArray();
+	}
+
+	private void load() {
+		isLoaded = true;
+		if (!cache.isFile()) {
+			return;
+		}
+		try (var in = new DataInputStream(Files.newInputStream(cache.toPath()))) {
+			var etag = in.readUTF();
+			var lastModified = in.readUTF();
+			body = new String(readAllBytes(in), StandardCharsets.UTF_8);
+			this.etag = etag.isEmpty() ? null : etag;
+			this.lastModified = lastModified.isEmpty() ? null : lastModified;
+		} catch (IOException ignore) {
+			etag = null;
+			lastModified = null;
+			body = null;
+		}
+	}
+
+	private void save() throws IOException {
+		var dir = cache.getAbsoluteFile().getParentFile();
+		Files.createDirectories(dir.toPath());
+		var tmp = Files.createTempFile(dir.toPath(), null, TMP_SUFFIX);
+		try {
+			try (var out = new DataOutputStream(Files.newOutputStream(tmp))) {
+				out.writeUTF(etag != null ? etag : "");
+				out.writeUTF(lastModified != null ? lastModified : "");
+				out.write(body.getBytes(StandardCharsets.UTF_8));
+			}
+			Files.move(tmp, cache.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	public synchronized String check() throws IOException {
+		if (!isLoaded) {
+			load();
+		}
+		var connection = (HttpURLConnection) url.openConnection();
+		try {
+			connection.setConnectTimeout(TIMEOUT);
+			connection.setReadTimeout(TIMEOUT);
+			connection.setUseCaches(false);
+			if (body != null && etag != null) {
+				connection.setRequestProperty("If-None-Match", etag);
+			}
+			if (body != null && lastModified != null) {
+				connection.setRequestProperty("If-Modified-Since", lastModified);
+			}
+			var code = connection.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED && body != null) {
+				notModifiedCount.incrementAndGet();
+				cache.setLastModified(System.currentTimeMillis());
+				return body;
+			}
+			if (code != HttpURLConnection.HTTP_OK) {
+				throw new IOException(url + ": " + code);
+			}
+			try (var in = connection.getInputStream()) {
+				body = new String(readAllBytes(in), StandardCharsets.UTF_8);
+			}
+			etag = connection.getHeaderField("ETag");
+			lastModified = connection.getHeaderField("Last-Modified");
+			fetchCount.incrementAndGet();
+			try {
+				save();
+			} catch (IOException ignore) {
+			}
+			return body;
+		} catch (IOException e) {
+			failureCount.incrementAndGet();
+			throw e;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "fetchCount = " + getFetchCount() +
+				", notModifiedCount = " + getNotModifiedCount() +
+				", failureCount = " + getFailureCount();
+	}
+}
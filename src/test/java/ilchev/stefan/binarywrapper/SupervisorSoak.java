@@ -0,0 +1,455 @@
+package ilchev.stefan.binarywrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class SupervisorSoak {
+
+	private static final class Scenario {
+
+		private final String name;
+
+		private final int exitValue;
+
+		private final long outputBytes;
+
+		private final boolean isHung;
+
+		private final long churnPeriod;
+
+		private final Set<Integer> exitValuesEnd;
+
+		private final Set<Integer> exitValuesStart;
+
+		private Scenario(
+				String name,
+				int exitValue,
+				long outputBytes,
+				boolean isHung,
+				long churnPeriod,
+				Set<Integer> exitValuesEnd,
+				Set<Integer> exitValuesStart) {
+			this.name = name;
+			this.exitValue = exitValue;
+			this.outputBytes = outputBytes;
+			this.isHung = isHung;
+			this.churnPeriod = churnPeriod;
+			this.exitValuesEnd = exitValuesEnd;
+			this.exitValuesStart = exitValuesStart;
+		}
+	}
+
+	private static final class Stats {
+
+		private static final int LATENCIES_COUNT = 100_000;
+
+		private final LongAdder startCount = new LongAdder();
+
+		private final LongAdder restartCount = new LongAdder();
+
+		private final LongAdder lineCount = new LongAdder();
+
+		private final LongAdder outputBytes = new LongAdder();
+
+		private final AtomicLong cpuTime = new AtomicLong();
+
+		private final AtomicLong allocatedBytes = new AtomicLong();
+
+		private final Set<FakeProcess> processes = Collections.synchronizedSet(new HashSet<>());
+
+		private final long[] latencies = new long[LATENCIES_COUNT];
+
+		private long latencyCount = 0L;
+
+		private synchronized void addLatency(long value) {
+			var count = latencyCount++;
+			if (count < latencies.length) {
+				latencies[(int) count] = value;
+			} else {
+				var i = ThreadLocalRandom.current().nextLong(count + 1L);
+				if (i < latencies.length) {
+					latencies[(int) i] = value;
+				}
+			}
+		}
+
+		private synchronized long[] getLatencies() {
+			var result = Arrays.copyOf(latencies, (int) Math.min(latencyCount, latencies.length));
+			Arrays.sort(result);
+			return result;
+		}
+	}
+
+	private static final class FakeProcess extends Process {
+
+		private static final byte[] LINE = "0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopqrstuvwxyz0123456789abcdefghijklmnopq\n"
+				.getBytes();
+
+		private final Scenario scenario;
+
+		private final Stats stats;
+
+		private final CountDownLatch exit = new CountDownLatch(1);
+
+		private volatile int exitValue = 0;
+
+		private volatile long exitTime = 0L;
+
+		private final OutputStream outputStream = new ByteArrayOutputStream();
+
+		private final InputStream inputStream = new InputStream() {
+
+			private long position = 0L;
+
+			@Override
+			public int read() {
+				var buffer = new byte[1];
+				return read(buffer, 0, 1) < 0 ? -1 : buffer[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if (len == 0) {
+					return 0;
+				}
+				if (position >= scenario.outputBytes) {
+					if (scenario.isHung) {
+						try {
+							exit.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					} else {
+						finish(scenario.exitValue);
+					}
+					return -1;
+				}
+				if (exit.getCount() == 0L) {
+					return -1;
+				}
+				var offset = (int) (position % LINE.length);
+				var count = (int) Math.min(Math.min(len, LINE.length - offset), scenario.outputBytes - position);
+				System.arraycopy(LINE, offset, b, off, count);
+				position += count;
+				stats.outputBytes.add(count);
+				return count;
+			}
+		};
+
+		private FakeProcess(Scenario scenario, Stats stats) {
+			this.scenario = scenario;
+			this.stats = stats;
+			stats.processes.add(this);
+		}
+
+		private void finish(int value) {
+			if (exit.getCount() != 0L) {
+				exitValue = value;
+				exitTime = System.nanoTime();
+				stats.processes.remove(this);
+				exit.countDown();
+			}
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return outputStream;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return inputStream;
+		}
+
+		@Override
+		public InputStream getErrorStream() {
+			return new ByteArrayInputStream(new byte[0]);
+		}
+
+		@Override
+		public int waitFor() throws InterruptedException {
+			exit.await();
+			return exitValue;
+		}
+
+		@Override
+		public int exitValue() {
+			if (exit.getCount() != 0L) {
+				throw new IllegalThreadStateException();
+			}
+			return exitValue;
+		}
+
+		@Override
+		public void destroy() {
+			finish(143);
+		}
+	}
+
+	private static final class FakeDaemon implements Runnable {
+
+		private final Scenario scenario;
+
+		private final Stats stats;
+
+		private final CommandChannel commandChannel;
+
+		private final ProcessHandoff handoff;
+
+		private FakeDaemon(Scenario scenario, Stats stats, ExecutorService mainExecutor) {
+			this.scenario = scenario;
+			this.stats = stats;
+			commandChannel = new CommandChannel(scenario.name, 1);
+			handoff = new ProcessHandoff() {
+
+				@Override
+				boolean isMainThread() {
+					return false;
+				}
+
+				@Override
+				boolean post(Runnable runnable) {
+					try {
+						mainExecutor.execute(runnable);
+						return true;
+					} catch (RejectedExecutionException ignore) {
+					}
+					return false;
+				}
+
+				@Override
+				CommandChannel getCommandChannel() {
+					return commandChannel;
+				}
+			};
+		}
+
+		private void destroy() {
+			commandChannel.close();
+			handoff.destroy();
+		}
+
+		@Override
+		public void run() {
+			var threadId = Thread.currentThread().getId();
+			var cpuTime = getCpuTime();
+			var allocatedBytes = getAllocatedBytes(threadId);
+			try {
+				new Supervisor() {
+
+					private FakeProcess last = null;
+
+					@Override
+					boolean isDestroyed() {
+						return handoff.isDestroyed();
+					}
+
+					@Override
+					Set<Integer> getExitValuesEnd() {
+						return scenario.exitValuesEnd;
+					}
+
+					@Override
+					Set<Integer> getExitValuesSkip() {
+						return Collections.emptySet();
+					}
+
+					@Override
+					Set<Integer> getExitValuesStart() {
+						return scenario.exitValuesStart;
+					}
+
+					@Override
+					int getRetriesCount() {
+						return Integer.MAX_VALUE;
+					}
+
+					@Override
+					long getRetryDelay() {
+						return 0L;
+					}
+
+					@Override
+					Process start() {
+						var last = this.last;
+						if (last != null) {
+							stats.addLatency(System.nanoTime() - last.exitTime);
+						}
+						var process = new FakeProcess(scenario, stats);
+						this.last = process;
+						return process;
+					}
+
+					@Override
+					boolean onStart(Process process, boolean isRestart) {
+						if (isRestart) {
+							stats.restartCount.increment();
+						}
+						stats.startCount.increment();
+						return handoff.start(process);
+					}
+
+					@Override
+					void onLine(String line) {
+						stats.lineCount.increment();
+					}
+
+					@Override
+					boolean onExit(int exitValue) {
+						return handoff.exit(last);
+					}
+				}.run();
+			} catch (Throwable t) {
+				t.printStackTrace();
+			} finally {
+				stats.cpuTime.addAndGet(getCpuTime() - cpuTime);
+				stats.allocatedBytes.addAndGet(getAllocatedBytes(threadId) - allocatedBytes);
+			}
+		}
+	}
+
+	private static final Object THREAD_MX_BEAN;
+
+	private static final Method GET_CPU_TIME;
+
+	private static final Method GET_ALLOCATED_BYTES;
+
+	static {
+		Object threadMXBean = null;
+		Method getCpuTime = null;
+		Method getAllocatedBytes = null;
+		try {
+			threadMXBean = Class.forName("java.lang.management.ManagementFactory")
+					.getMethod("getThreadMXBean")
+					.invoke(null);
+			getCpuTime = Class.forName("java.lang.management.ThreadMXBean")
+					.getMethod("getCurrentThreadCpuTime");
+			getAllocatedBytes = Class.forName("com.sun.management.ThreadMXBean")
+					.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Throwable ignore) {
+		}
+		THREAD_MX_BEAN = threadMXBean;
+		GET_CPU_TIME = getCpuTime;
+		GET_ALLOCATED_BYTES = getAllocatedBytes;
+	}
+
+	private static long invoke(Method method, Object... args) {
+		try {
+			return method != null ? (Long) method.invoke(THREAD_MX_BEAN, args) : 0L;
+		} catch (Throwable ignore) {
+		}
+		return 0L;
+	}
+
+	private static long getCpuTime() {
+		return invoke(GET_CPU_TIME);
+	}
+
+	private static long getAllocatedBytes(long threadId) {
+		return invoke(GET_ALLOCATED_BYTES, threadId);
+	}
+
+	private static Set<Thread> getThreads() {
+		var result = new HashSet<>(Thread.getAllStackTraces().keySet());
+		result.removeIf(it -> {
+			var group = it.getThreadGroup();
+			return group == null || "system".equals(group.getName());
+		});
+		return result;
+	}
+
+	private static String percentile(long[] values, double p) {
+		if (values.length == 0) {
+			return "-";
+		}
+		var value = values[(int) Math.min(values.length - 1L, Math.round(p * (values.length - 1)))];
+		return String.format(Locale.ROOT, "%.1fus", value / 1_000.0);
+	}
+
+	private static void run(Scenario scenario, long duration) throws Exception {
+		var threads = getThreads();
+		var stats = new Stats();
+		var mainExecutor = Executors.newSingleThreadExecutor();
+		var workExecutor = Executors.newSingleThreadExecutor();
+		var time = System.nanoTime();
+		var end = time + TimeUnit.MILLISECONDS.toNanos(duration);
+		var daemon = new FakeDaemon(scenario, stats, mainExecutor);
+		workExecutor.execute(daemon);
+		while (System.nanoTime() < end) {
+			if (scenario.churnPeriod > 0L) {
+				Thread.sleep(scenario.churnPeriod);
+				daemon.destroy();
+				daemon = new FakeDaemon(scenario, stats, mainExecutor);
+				workExecutor.execute(daemon);
+			} else {
+				Thread.sleep(Math.min(100L, Math.max(1L, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+			}
+		}
+		daemon.destroy();
+		workExecutor.shutdown();
+		var isTerminated = workExecutor.awaitTermination(10L, TimeUnit.SECONDS);
+		mainExecutor.shutdown();
+		isTerminated &= mainExecutor.awaitTermination(10L, TimeUnit.SECONDS);
+		var wall = System.nanoTime() - time;
+		var leakedThreads = getThreads();
+		leakedThreads.removeAll(threads);
+		leakedThreads.removeIf(it -> !it.isAlive());
+		var latencies = stats.getLatencies();
+		var seconds = wall / 1_000_000_000.0;
+		System.out.printf(Locale.ROOT, "%s: wall = %.1fs, terminated = %b%n", scenario.name, seconds, isTerminated);
+		System.out.printf(Locale.ROOT, "  starts = %d, restarts = %d (%.0f/s), lines = %d, output = %.1fMiB (%.1fMiB/s)%n",
+				stats.startCount.sum(),
+				stats.restartCount.sum(),
+				stats.restartCount.sum() / seconds,
+				stats.lineCount.sum(),
+				stats.outputBytes.sum() / 1_048_576.0,
+				stats.outputBytes.sum() / 1_048_576.0 / seconds);
+		System.out.printf(Locale.ROOT, "  supervisor cpu = %.1fms (%.1f%%), allocated = %.1fMiB (%.1fMiB/s)%n",
+				stats.cpuTime.get() / 1_000_000.0,
+				stats.cpuTime.get() * 100.0 / wall,
+				stats.allocatedBytes.get() / 1_048_576.0,
+				stats.allocatedBytes.get() / 1_048_576.0 / seconds);
+		System.out.printf(Locale.ROOT, "  restart latency p50 = %s, p90 = %s, p99 = %s, max = %s%n",
+				percentile(latencies, 0.5),
+				percentile(latencies, 0.9),
+				percentile(latencies, 0.99),
+				percentile(latencies, 1.0));
+		System.out.printf(Locale.ROOT, "  leaked threads = %d, leaked processes = %d%n",
+				leakedThreads.size(),
+				stats.processes.size());
+	}
+
+	public static void main(String[] args) throws Exception {
+		var name = args.length > 0 ? args[0] : "all";
+		var duration = args.length > 1 ? Long.parseLong(args[1]) * 1_000L : 10_000L;
+		var floodBytes = args.length > 2 ? Long.parseLong(args[2]) : 1L << 30;
+		var scenarios = new Scenario[]{
+				new Scenario("instant-crash", 1, 0L, false, 0L, Collections.emptySet(), Collections.singleton(1)),
+				new Scenario("crash-loop", 1, 100_000L, false, 0L, Collections.emptySet(), Collections.singleton(1)),
+				new Scenario("flood", 0, floodBytes, false, 0L, Collections.emptySet(), Collections.singleton(0)),
+				new Scenario("hung", 0, 10_000L, true, 200L, Collections.emptySet(), Collections.emptySet()),
+				new Scenario("churn", 1, 1_000L, false, 5L, Collections.emptySet(), Collections.singleton(1))
+		};
+		for (var scenario : scenarios) {
+			if (name.equals("all") || name.equals(scenario.name)) {
+				run(scenario, duration);
+			}
+		}
+	}
+}
@@ -0,0 +1,113 @@
+package ilchev.stefan.binarywrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.stream.Collectors;
+
+public class ThrottlePolicyTest {
+
+	private static final class FakeSource implements ThrottlePolicy.Source {
+
+		private int thermalStatus = 0;
+
+		private int batteryLevel = 100;
+
+		private boolean isCharging = false;
+
+		private boolean isPowerSaveMode = false;
+
+		private FakeSource set(int thermalStatus, int batteryLevel, boolean isCharging, boolean isPowerSaveMode) {
+			this.thermalStatus = thermalStatus;
+			this.batteryLevel = batteryLevel;
+			this.isCharging = isCharging;
+			this.isPowerSaveMode = isPowerSaveMode;
+			return this;
+		}
+
+		@Override
+		public int getThermalStatus() {
+			return thermalStatus;
+		}
+
+		@Override
+		public int getBatteryLevel() {
+			return batteryLevel;
+		}
+
+		@Override
+		public boolean isCharging() {
+			return isCharging;
+		}
+
+		@Override
+		public boolean isPowerSaveMode() {
+			return isPowerSaveMode;
+		}
+	}
+
+	private final FakeSource source = new FakeSource();
+
+	@Test
+	public void defaultThresholds() {
+		var policy = new ThrottlePolicy();
+		assertEquals(ThrottlePolicy.Action.NONE, policy.update(source.set(0, 100, false, false)));
+		assertEquals(ThrottlePolicy.Action.SIGNAL, policy.update(source.set(1, 100, false, false)));
+		assertEquals(ThrottlePolicy.Action.SIGNAL, policy.update(source.set(0, 100, false, true)));
+		assertEquals(ThrottlePolicy.Action.RENICE, policy.update(source.set(2, 100, false, false)));
+		assertEquals(ThrottlePolicy.Action.RENICE, policy.update(source.set(0, 15, false, false)));
+		assertEquals(ThrottlePolicy.Action.NONE, policy.update(source.set(0, 15, true, false)));
+		assertEquals(ThrottlePolicy.Action.PAUSE, policy.update(source.set(3, 100, true, false)));
+		assertEquals(ThrottlePolicy.Action.PAUSE, policy.update(source.set(0, 5, false, false)));
+		assertEquals(ThrottlePolicy.Action.PAUSE, policy.update(source.set(4, 5, false, false)));
+		assertEquals(ThrottlePolicy.Action.NONE, policy.update(source.set(0, 100, false, false)));
+		assertEquals(ThrottlePolicy.Action.NONE, policy.getAction());
+	}
+
+	@Test
+	public void transitionsAreRecordedInOrder() {
+		var policy = new ThrottlePolicy();
+		policy.update(source.set(1, 100, false, false));
+		policy.update(source.set(2, 100, false, false));
+		policy.update(source.set(2, 100, false, false));
+		policy.update(source.set(0, 100, false, false));
+		policy.update(source.set(3, 100, false, false));
+		policy.update(source.set(0, 100, false, false));
+		var transitions = policy.getTransitions();
+		assertEquals("[NONE -> SIGNAL, SIGNAL -> RENICE, RENICE -> NONE, NONE -> PAUSE, PAUSE -> NONE]",
+				transitions.stream().map(it -> it.from + " -> " + it.to).collect(Collectors.toList()).toString());
+		for (var i = 1; i < transitions.size(); ++i) {
+			assertTrue(transitions.get(i - 1).time <= transitions.get(i).time);
+		}
+	}
+
+	@Test
+	public void overriddenThresholds() {
+		var policy = new ThrottlePolicy() {
+
+			@Override
+			protected boolean isPowerSaveModeRenice() {
+				return true;
+			}
+
+			@Override
+			protected int getThermalStatusPause() {
+				return 5;
+			}
+		};
+		assertEquals(ThrottlePolicy.Action.RENICE, policy.update(source.set(0, 100, false, true)));
+		assertEquals(ThrottlePolicy.Action.RENICE, policy.update(source.set(3, 100, false, false)));
+		assertEquals(ThrottlePolicy.Action.PAUSE, policy.update(source.set(5, 100, false, false)));
+	}
+
+	@Test
+	public void transitionsAreBounded() {
+		var policy = new ThrottlePolicy();
+		for (var i = 0; i < 100; ++i) {
+			policy.update(source.set(i % 2 == 0 ? 3 : 0, 100, false, false));
+		}
+		assertEquals(32, policy.getTransitions().size());
+	}
+}
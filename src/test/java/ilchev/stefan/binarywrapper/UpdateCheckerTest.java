@@ -0,0 +1,150 @@
+package ilchev.stefan.binarywrapper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class UpdateCheckerTest {
+
+	private static final class StandIn implements Runnable, AutoCloseable {
+
+		private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+		private volatile String body = "1.0";
+
+		private volatile int code = 200;
+
+		private volatile boolean isEtag = true;
+
+		private volatile Map<String, String> headers = new TreeMap<>();
+
+		private StandIn() throws IOException {
+			var thread = new Thread(this, "StandIn");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private URL getUrl() throws IOException {
+			return new URL("http://127.0.0.1:" + serverSocket.getLocalPort() + "/version");
+		}
+
+		private void serve(Socket socket) throws IOException {
+			var reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+			reader.readLine();
+			var headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+			for (String line; (line = reader.readLine()) != null && !line.isEmpty(); ) {
+				var index = line.indexOf(':');
+				if (index > 0) {
+					headers.put(line.substring(0, index).trim(), line.substring(index + 1).trim());
+				}
+			}
+			this.headers = headers;
+			var body = this.body;
+			var etag = "\"" + body + "\"";
+			var lastModified = "Mon, 19 Oct 2026 00:00:0" + Math.abs(body.hashCode() % 10) + " GMT";
+			var isNotModified = isEtag
+					? etag.equals(headers.get("If-None-Match"))
+					: lastModified.equals(headers.get("If-Modified-Since"));
+			var code = this.code == 200 && isNotModified ? 304 : this.code;
+			var bytes = code == 200 ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+			var response = new StringBuilder()
+					.append("HTTP/1.1 ").append(code).append(" X\r\n")
+					.append(isEtag ? "ETag: " + etag : "Last-Modified: " + lastModified).append("\r\n")
+					.append("Content-Length: ").append(bytes.length).append("\r\n")
+					.append("Connection: close\r\n\r\n");
+			var out = socket.getOutputStream();
+			out.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+			out.write(bytes);
+			out.flush();
+		}
+
+		@Override
+		public void run() {
+			while (!serverSocket.isClosed()) {
+				try (var socket = serverSocket.accept()) {
+					serve(socket);
+				} catch (IOException ignore) {
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			serverSocket.close();
+		}
+	}
+
+	private StandIn standIn = null;
+
+	private Path dir = null;
+
+	@Before
+	public void setUp() throws IOException {
+		standIn = new StandIn();
+		dir = Files.createTempDirectory("UpdateCheckerTest");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		standIn.close();
+		try (var stream = Files.walk(dir)) {
+			stream.sorted(Comparator.reverseOrder())
+					.map(Path::toFile)
+					.forEach(File::delete);
+		}
+	}
+
+	@Test
+	public void etag() throws IOException {
+		var cache = dir.resolve("etag.update").toFile();
+		var checker = new UpdateChecker(standIn.getUrl(), cache);
+		assertEquals("1.0", checker.check());
+		assertNull(standIn.headers.get("If-None-Match"));
+		assertEquals("1.0", checker.check());
+		assertEquals("\"1.0\"", standIn.headers.get("If-None-Match"));
+		assertEquals("fetchCount = 1, notModifiedCount = 1, failureCount = 0", checker.toString());
+		var reloaded = new UpdateChecker(standIn.getUrl(), cache);
+		assertEquals("1.0", reloaded.check());
+		assertEquals("fetchCount = 0, notModifiedCount = 1, failureCount = 0", reloaded.toString());
+		standIn.code = 500;
+		assertThrows(IOException.class, reloaded::check);
+		standIn.code = 200;
+		standIn.body = "2.0";
+		assertEquals("2.0", reloaded.check());
+		assertEquals("fetchCount = 1, notModifiedCount = 1, failureCount = 1", reloaded.toString());
+		assertTrue(reloaded.getCheckTime() > 0L);
+	}
+
+	@Test
+	public void lastModified() throws IOException {
+		standIn.isEtag = false;
+		standIn.body = "3.0";
+		var checker = new UpdateChecker(standIn.getUrl(), dir.resolve("last-modified.update").toFile());
+		assertEquals("3.0", checker.check());
+		assertFalse(standIn.headers.containsKey("If-Modified-Since"));
+		assertEquals("3.0", checker.check());
+		assertTrue(standIn.headers.containsKey("If-Modified-Since"));
+		assertEquals("fetchCount = 1, notModifiedCount = 1, failureCount = 0", checker.toString());
+	}
+}